@@ -380,45 +380,238 @@ public class Matching {
         return engine.allSolutions(clauseC, this.examples.get(exampleIndex), maxCount);
     }
 
+    /**
+     * Computes all solutions (substitutions) of the problem "c theta-subsumes e" and passes them to the consumer
+     * without storing them.
+     * @param c hypothesis
+     * @param exampleIndex index of the example
+     * @param consumer consumer of the solutions
+     * @return array of the variables to which the terms in the solutions are substituted
+     */
+    public Term[] allSubstitutions(Clause c, int exampleIndex, SubsumptionEngineJ2.SolutionConsumer consumer){
+        SubsumptionEngineJ2.ClauseC clauseC = this.engine.createCluaseC(c);
+        return engine.allSolutions(clauseC, this.examples.get(exampleIndex), consumer);
+    }
+
+    /**
+     * Computes all groundings of clause c (by the terms of the example) which are true in the example.
+     * @param c clause
+     * @param exampleIndex index of the example
+     * @return pair: the first element is an array of variables, the second element is a list of arrays of terms,
+     * each such array represents one true grounding
+     */
     public Pair<Term[],List<Term[]>> allTrueGroundings(Clause c, int exampleIndex){
-        List<Literal> auxLiterals = new ArrayList<Literal>();
-        for (Variable v : c.variables()){
-            auxLiterals.add(new Literal("", true, v));
+        TrueGroundings trueGroundings = this.trueGroundings(c, exampleIndex);
+        List<Term[]> retList = new ArrayList<Term[]>();
+        while (trueGroundings.next()){
+            retList.add(trueGroundings.terms());
         }
-        Clause aux = new Clause(auxLiterals);
-        Pair<Term[],List<Term[]>> allGroundings = this.allSubstitutions(aux, exampleIndex, Integer.MAX_VALUE);
-        Set<Map<Term,Term>> grSet = new LinkedHashSet<Map<Term,Term>>();
-        for (Term[] grounding : allGroundings.s){
-            Map<Term,Term> gr = new HashMap<Term,Term>();
-            for (int i = 0; i < grounding.length; i++){
-                gr.put(allGroundings.r[i], grounding[i]);
+        return new Pair<Term[],List<Term[]>>(trueGroundings.variables(), retList);
+    }
+
+    /**
+     * Enumerates the groundings of clause c (by the terms of the example) which are true in the example without
+     * storing them. Only the groundings which make c false are computed by the subsumption engine (as the solutions
+     * of the problem "negation of c theta-subsumes the example"), they are consumed one by one from the engine and
+     * stored as a sorted array of numbers in the mixed radix given by the sizes of the domains of the variables.
+     * The other groundings are streamed as arrays of indices to the domains.
+     * @param c clause
+     * @param exampleIndex index of the example
+     * @return the true groundings of c
+     */
+    public TrueGroundings trueGroundings(Clause c, int exampleIndex){
+        Term[] variables = c.variables().toArray(new Term[0]);
+        Term[][] domains = new Term[variables.length][];
+        long count = 1;
+        for (int i = 0; i < variables.length; i++){
+            List<Term[]> domain = this.allSubstitutions(new Clause(new Literal("", true, variables[i])), exampleIndex, Integer.MAX_VALUE).s;
+            domains[i] = new Term[domain.size()];
+            for (int j = 0; j < domains[i].length; j++){
+                domains[i][j] = domain.get(j)[0];
+            }
+            if (domains[i].length > 0 && count > Long.MAX_VALUE/domains[i].length){
+                throw new IllegalArgumentException("Too many groundings of "+c);
             }
-            grSet.add(gr);
+            count *= domains[i].length;
         }
+        long[] falseGroundings = new long[0];
         List<Literal> flippedSignLiterals = new ArrayList<Literal>();
+        boolean groundLiteralTrue = false;
         for (Literal literal : c.literals()){
-            flippedSignLiterals.add(literal.negation());
+            if (LogicUtils.isGround(literal)){
+                //ground literals are checked separately because the engine does not check the negated ones
+                //when they occur together with literals containing variables
+                groundLiteralTrue |= !this.subsumption(new Clause(literal.negation()), exampleIndex);
+            } else {
+                flippedSignLiterals.add(literal.negation());
+            }
         }
-        Clause negation = new Clause(flippedSignLiterals);
-        Pair<Term[],List<Term[]>> negGroundings = this.allSubstitutions(negation, exampleIndex, Integer.MAX_VALUE);
-        Set<Map<Term,Term>> negSet = new HashSet<Map<Term,Term>>();
-        for (Term[] grounding : negGroundings.s){
-            Map<Term,Term> gr = new LinkedHashMap<Term,Term>();
-            for (int i = 0; i < grounding.length; i++){
-                gr.put(negGroundings.r[i], grounding[i]);
+        if (count > 0 && !groundLiteralTrue){
+            GroundingCodes codes = new GroundingCodes(variables, domains);
+            this.allSubstitutions(new Clause(flippedSignLiterals), exampleIndex, codes);
+            falseGroundings = codes.sortedCodes();
+        }
+        return new TrueGroundings(variables, domains, count, falseGroundings);
+    }
+
+    /**
+     * Consumer of the solutions computed by the subsumption engine which keeps only their codes: the numbers
+     * in the mixed radix given by the sizes of the domains of the variables. The solutions which substitute
+     * a term outside the domain of some variable are ignored.
+     */
+    private static class GroundingCodes implements SubsumptionEngineJ2.SolutionConsumer {
+
+        private final Term[] variables;
+
+        private final Term[][] domains;
+
+        private final List<Map<Term,Integer>> domainIndices = new ArrayList<Map<Term,Integer>>();
+
+        //positions of the variables in the solutions, computed from the first solution
+        private int[] positions;
+
+        private long[] codes = new long[16];
+
+        private int size = 0;
+
+        private GroundingCodes(Term[] variables, Term[][] domains){
+            this.variables = variables;
+            this.domains = domains;
+            for (Term[] domain : domains){
+                Map<Term,Integer> indices = new HashMap<Term,Integer>();
+                for (int j = 0; j < domain.length; j++){
+                    indices.put(domain[j], j);
+                }
+                this.domainIndices.add(indices);
             }
-            negSet.add(gr);
         }
-        grSet = Sugar.setDifference(grSet, negSet);
-        List<Term[]> retList = new ArrayList<Term[]>();
-        for (Map<Term,Term> map : grSet){
-            Term[] grounding = new Term[allGroundings.r.length];
-            for (int i = 0; i < grounding.length; i++){
-                grounding[i] = map.get(allGroundings.r[i]);
+
+        public void solution(Term[] solutionVariables, Term[] solution) {
+            if (this.positions == null){
+                this.positions = new int[this.variables.length];
+                for (int i = 0; i < this.variables.length; i++){
+                    this.positions[i] = Arrays.asList(solutionVariables).indexOf(this.variables[i]);
+                }
+            }
+            long code = 0;
+            for (int i = 0; i < this.variables.length; i++){
+                Integer index = this.domainIndices.get(i).get(solution[this.positions[i]]);
+                if (index == null){
+                    return;
+                }
+                code = code*this.domains[i].length+index;
+            }
+            if (this.size == this.codes.length){
+                this.codes = Arrays.copyOf(this.codes, 2*this.codes.length);
             }
-            retList.add(grounding);
+            this.codes[this.size++] = code;
+        }
+
+        public boolean isDone() {
+            return false;
+        }
+
+        /**
+         * @return the distinct codes in ascending order
+         */
+        private long[] sortedCodes(){
+            Arrays.sort(this.codes, 0, this.size);
+            int distinct = 0;
+            for (int i = 0; i < this.size; i++){
+                if (distinct == 0 || this.codes[distinct-1] != this.codes[i]){
+                    this.codes[distinct++] = this.codes[i];
+                }
+            }
+            return Arrays.copyOf(this.codes, distinct);
+        }
+    }
+
+    /**
+     * Stream of the true groundings of a clause computed by trueGroundings(Clause, int). The groundings are
+     * enumerated in the order of the numbers which encode them, so the sorted codes of the false groundings
+     * are skipped by a single pass.
+     */
+    public static class TrueGroundings {
+
+        private final Term[] variables;
+
+        private final Term[][] domains;
+
+        private final long count;
+
+        //sorted codes of the false groundings
+        private final long[] falseGroundings;
+
+        //index of the first code in falseGroundings which is not smaller than code
+        private int nextFalseGrounding = 0;
+
+        private final int[] current;
+
+        private long code = -1;
+
+        private TrueGroundings(Term[] variables, Term[][] domains, long count, long[] falseGroundings){
+            this.variables = variables;
+            this.domains = domains;
+            this.count = count;
+            this.falseGroundings = falseGroundings;
+            this.current = new int[variables.length];
+        }
+
+        /**
+         * Moves to the next true grounding.
+         * @return false if there are no more true groundings
+         */
+        public boolean next(){
+            while (++this.code < this.count){
+                if (this.code > 0){
+                    //increments the mixed-radix counter
+                    for (int i = this.current.length-1; i >= 0; i--){
+                        if (++this.current[i] < this.domains[i].length){
+                            break;
+                        }
+                        this.current[i] = 0;
+                    }
+                }
+                while (this.nextFalseGrounding < this.falseGroundings.length && this.falseGroundings[this.nextFalseGrounding] < this.code){
+                    this.nextFalseGrounding++;
+                }
+                if (this.nextFalseGrounding == this.falseGroundings.length || this.falseGroundings[this.nextFalseGrounding] != this.code){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the current grounding as indices to the domains of the variables (the array is reused by
+         * next(), so it must be copied if it should be stored)
+         */
+        public int[] indices(){
+            return this.current;
+        }
+
+        /**
+         * @return the terms of the current grounding (a new array)
+         */
+        public Term[] terms(){
+            Term[] terms = new Term[this.variables.length];
+            for (int i = 0; i < terms.length; i++){
+                terms[i] = this.domains[i][this.current[i]];
+            }
+            return terms;
+        }
+
+        public Term[] variables(){
+            return this.variables;
+        }
+
+        /**
+         * @param variable index of a variable
+         * @return the terms which can be substituted for the variable
+         */
+        public Term[] domain(int variable){
+            return this.domains[variable];
         }
-        return new Pair<Term[],List<Term[]>>(allGroundings.r, retList);
     }
 
     public Clause thetaReduction(Clause clause){
@@ -136,7 +136,29 @@ public class SubsumptionEngineJ2 {
      * The terms iterable the arrays are substitutions to the respective variables listed iterable the array which
      * is the first element iterable the pair.
      */
-    public Pair<Term[],List<Term[]>> allSolutions(ClauseC c, ClauseE e, int maxCount){
+    public Pair<Term[],List<Term[]>> allSolutions(ClauseC c, ClauseE e, final int maxCount){
+        final List<Term[]> solutions = new ArrayList<Term[]>();
+        Term[] template = allSolutions(c, e, new SolutionConsumer() {
+            public void solution(Term[] variables, Term[] solution) {
+                solutions.add(solution);
+            }
+
+            public boolean isDone() {
+                return solutions.size() >= maxCount;
+            }
+        });
+        return new Pair<Term[],List<Term[]>>(template,solutions);
+    }
+
+    /**
+     * Computes all solutions to the subsumption problem "c theta-subsumes e" and passes them to the given consumer
+     * one by one instead of storing them.
+     * @param c hypothesis
+     * @param e example
+     * @param consumer consumer of the solutions, the search stops when its method isDone() returns true
+     * @return array of the variables to which the terms in the solutions are substituted
+     */
+    public Term[] allSolutions(ClauseC c, ClauseE e, SolutionConsumer consumer){
         long m1 = System.currentTimeMillis();
         if (!initialUnsatCheck(c,e) || !c.initialize(e)){
             this.solvedWithoutSearch = true;
@@ -144,9 +166,8 @@ public class SubsumptionEngineJ2 {
             for (int i = 0; i < template.length; i++){
                 template[i] = c.variablesToIntegers.indexToValue(i);
             }
-            return new Pair<Term[],List<Term[]>>(template, new ArrayList<Term[]>(1));
+            return template;
         }
-        List<Term[]> solutions = new ArrayList<Term[]>();
         int[] variableOrder = variableOrder(c, e, false);
         Term[] template = new Term[variableOrder.length];
         for (int i = 0; i < variableOrder.length; i++){
@@ -154,18 +175,18 @@ public class SubsumptionEngineJ2 {
         }
         this.solvedWithoutSearch = false;
         long m2 = System.currentTimeMillis();
-        solveAll(c, e, 0, variableOrder, new HashSet<Integer>(), template, solutions, maxCount);
+        solveAll(c, e, 0, variableOrder, new HashSet<Integer>(), template, consumer);
         long m3 = System.currentTimeMillis();
-        return new Pair<Term[],List<Term[]>>(template,solutions);
+        return template;
     }
 
-    private Boolean solveAll(ClauseC c, ClauseE e, int varIndex, int[] variableOrder, Set<Integer> oiSet, Term[] template, List<Term[]> solutions, int maxCount){
+    private Boolean solveAll(ClauseC c, ClauseE e, int varIndex, int[] variableOrder, Set<Integer> oiSet, Term[] template, SolutionConsumer consumer){
         if (varIndex == variableOrder.length){
             Term[] solution = new Term[variableOrder.length];
             for (int i = 0; i < variableOrder.length; i++){
                 solution[i] = termsToIntegers.indexToValue(c.groundedValues[i]);
             }
-            solutions.add(solution);
+            consumer.solution(template, solution);
             return Boolean.TRUE;
         }
         int[] valueOrder = valueOrder(c, e, variableOrder[varIndex], 1);
@@ -177,7 +198,7 @@ public class SubsumptionEngineJ2 {
             }
             IntegerSet[] oldDomains = c.oldDomains();
             if (c.groundFC(variableOrder[varIndex], valueOrder[i], e)){
-                if (solutions.size() >= maxCount){
+                if (consumer.isDone()){
                     return Boolean.TRUE;
                 }
                 if (this.subsumptionMode == OBJECT_IDENTITY){
@@ -185,7 +206,7 @@ public class SubsumptionEngineJ2 {
                 } else if (this.subsumptionMode == SELECTIVE_OBJECT_IDENTITY && !template[varIndex].name().startsWith("_")){
                     oiSet.add(valueOrder[i]);
                 }
-                solveAll(c, e, varIndex+1, variableOrder, oiSet, template, solutions, maxCount);
+                solveAll(c, e, varIndex+1, variableOrder, oiSet, template, consumer);
                 if (this.subsumptionMode == OBJECT_IDENTITY){
                     oiSet.remove(valueOrder[i]);
                 } else if (this.subsumptionMode == SELECTIVE_OBJECT_IDENTITY && !template[varIndex].name().startsWith("_")){
@@ -634,6 +655,24 @@ public class SubsumptionEngineJ2 {
         return this.numberOfLastRestart-1;
     }
 
+    /**
+     * An interface implemented by the consumers of the solutions computed by allSolutions(ClauseC, ClauseE, SolutionConsumer).
+     */
+    public interface SolutionConsumer {
+
+        /**
+         * Receives one solution of the subsumption problem.
+         * @param variables the variables (the same array for all solutions)
+         * @param solution the terms substituted to the respective variables
+         */
+        public void solution(Term[] variables, Term[] solution);
+
+        /**
+         * @return true if no more solutions are needed
+         */
+        public boolean isDone();
+    }
+
     /**
      * An interface implemented by data-structures for hypotheses (i.e. the clauses on
      * the left-hand-side of theta-subsumption).
@@ -29,7 +29,7 @@ import java.util.List;
  */
 public class Parallel {
 
-    private boolean stop = false;
+    private volatile boolean stop = false;
 
     private final List<WorkerThread> workers = Collections.synchronizedList(new ArrayList<WorkerThread>());
 
@@ -49,11 +49,22 @@ public class Parallel {
 
     /**
      * Stops the threads (can take a while because all threads must finish their
-     * "atomic" tasks, therefore it is a good idea to have short "atomic takss") 
+     * "atomic" tasks, therefore it is a good idea to have short "atomic takss").
+     * The tasks which have already been submitted are still performed, the tasks
+     * submitted after the call of this method are performed in the calling thread.
      */
     public void stop(){
-        this.stop = true;
-        tasks.notifyAll();
+        synchronized (tasks){
+            this.stop = true;
+            tasks.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of threads used by this instance
+     */
+    public int threadCount(){
+        return workers.size();
     }
 
     /**
@@ -73,17 +84,27 @@ public class Parallel {
 
     /**
      * Runs the tasks given as Runnables iterable parallel and waits until they are finished.
+     * If some of the tasks throw an exception, the other tasks are still performed and then
+     * the first of the exceptions is rethrown.
      * 
      * @param tasks the tasks which should be performed
      */
     public void runTasks(Runnable ...tasks){
         final Int counter = new Int(tasks.length);
+        List<Runnable> notSubmitted = new ArrayList<Runnable>();
         for (Runnable r : tasks){
             synchronized (this.tasks){
-                this.tasks.add(new Pair<Runnable,Int>(r,counter));
-                this.tasks.notify();
+                if (this.stop){
+                    notSubmitted.add(r);
+                } else {
+                    this.tasks.add(new Pair<Runnable,Int>(r,counter));
+                    this.tasks.notify();
+                }
             }
         }
+        for (Runnable r : notSubmitted){
+            run(r, counter);
+        }
         synchronized (counter){
             while (counter.value > 0){
                 try {
@@ -93,12 +114,38 @@ public class Parallel {
                 }
             }
         }
+        if (counter.failure instanceof RuntimeException){
+            throw (RuntimeException)counter.failure;
+        } else if (counter.failure instanceof Error){
+            throw (Error)counter.failure;
+        } else if (counter.failure != null){
+            throw new RuntimeException(counter.failure);
+        }
+    }
+
+    private static void run(Runnable task, Int counter){
+        Throwable failure = null;
+        try {
+            task.run();
+        } catch (Throwable t){
+            failure = t;
+        }
+        synchronized (counter){
+            if (counter.failure == null){
+                counter.failure = failure;
+            }
+            counter.value--;
+            counter.notify();
+        }
     }
 
     private static class Int {
         
         int value;
 
+        //the first exception thrown by the tasks counted by this counter
+        Throwable failure;
+
         public Int(){}
 
         public Int(int value){
@@ -114,10 +161,14 @@ public class Parallel {
 
         @Override
         public void run(){
-            while (!stop){
+            while (true){
                 Pair<Runnable,Int> task = null;
                 synchronized (tasks){
                     if (tasks.isEmpty()){
+                        if (stop){
+                            //the tasks submitted before stop() have all been taken
+                            return;
+                        }
                         try {
                             tasks.wait();
                         } catch (InterruptedException ie){
@@ -129,11 +180,7 @@ public class Parallel {
                     }
                 }
                 if (task != null){
-                    task.r.run();
-                    synchronized (task.s){
-                        task.s.value--;
-                        task.s.notify();
-                    }
+                    Parallel.run(task.r, task.s);
                 }
             }
         }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.Parallel;
+import ida.utils.collections.ValueToIndex;
+import ida.utils.tuples.Pair;
+import supertweety.misc.WeightSum;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Splits a ground program into components which do not share any atoms and optimizes every component separately
+ * (optionally in parallel), the solutions of the components are then merged. Components with at most
+ * BRUTE_FORCE_MAX_ATOMS atoms and no negative weights are solved by enumerating their states, the other ones
+ * by GroundProgramSolver. The enumeration of at most 2^BRUTE_FORCE_MAX_ATOMS states is exact and takes negligible
+ * time, so it ignores both the initial state and the time limit (and it is done even when the time limit has been
+ * reached). When the solver of a component hits the time limit without finding any model, the component keeps
+ * its truth values from the initial state if they satisfy its hard clauses, so the solutions of the other components
+ * are not lost.
+ */
+public class DecomposingGroundProgramSolver {
+
+    private final static int BRUTE_FORCE_MAX_ATOMS = 6;
+
+    private List<Clause> hardProgram = new ArrayList<Clause>();
+
+    private List<Pair<Clause,BigInteger>> softProgram = new ArrayList<Pair<Clause,BigInteger>>();
+
+    private int optimizationTimeout = Integer.MAX_VALUE;
+
+    private Parallel parallel;
+
+    private Set<Literal> initialState;
+
+    private boolean stratified = false;
+
+    private int algorithm = GroundProgramSolver.PB_OPTIMIZATION;
+
+    private int numComponents;
+
+    private BigInteger penalty;
+
+    private volatile boolean timedOut;
+
+    public DecomposingGroundProgramSolver(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> softProgram){
+        this.hardProgram.addAll(hardProgram);
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s == null){
+                this.hardProgram.add(c.r);
+            } else {
+                this.softProgram.add(c);
+            }
+        }
+    }
+
+    /**
+     * Optimizes the components of the ground program.
+     * @return the set of positive literals true in an optimal state (or in the best state found if some component
+     * timed out, see timedOut()), or null if the hard clauses cannot be satisfied (or if the solver of some
+     * component timed out without finding any model and the initial state does not satisfy the hard clauses of the
+     * component or it was not set)
+     */
+    public Set<Literal> optimize(){
+        this.penalty = null;
+        this.timedOut = false;
+        final List<Pair<List<Clause>,List<Pair<Clause,BigInteger>>>> components = components();
+        if (components == null){
+            return null;
+        }
+        this.numComponents = components.size();
+        final long deadline = optimizationTimeout == Integer.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+optimizationTimeout;
+        final List<Set<Literal>> solutions = new ArrayList<Set<Literal>>(Collections.<Set<Literal>>nCopies(components.size(), null));
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < components.size(); i++){
+            final int index = i;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    solutions.set(index, solve(components.get(index), deadline));
+                }
+            });
+        }
+        if (this.parallel != null && tasks.size() > 1){
+            this.parallel.runTasks(tasks);
+        } else {
+            for (Runnable task : tasks){
+                task.run();
+            }
+        }
+        Set<Literal> solution = new HashSet<Literal>();
+        for (Set<Literal> componentSolution : solutions){
+            if (componentSolution == null){
+                return null;
+            }
+            solution.addAll(componentSolution);
+        }
+        this.penalty = penalty(this.softProgram, solution);
+        return solution;
+    }
+
+    /**
+     * Splits the ground program into components connected by shared atoms. Empty soft clauses do not belong to any
+     * component (they are penalized in every state).
+     * @return list of pairs (hard clauses, soft clauses) of the components, or null if the program contains
+     * an empty hard clause
+     */
+    public List<Pair<List<Clause>,List<Pair<Clause,BigInteger>>>> components(){
+        ValueToIndex<Literal> atoms = new ValueToIndex<Literal>();
+        List<Clause> clauses = new ArrayList<Clause>();
+        for (Clause c : this.hardProgram){
+            if (c.countLiterals() == 0){
+                return null;
+            }
+            clauses.add(c);
+        }
+        for (Pair<Clause,BigInteger> c : this.softProgram){
+            clauses.add(c.r);
+        }
+        int[][] clauseAtoms = new int[clauses.size()][];
+        for (int i = 0; i < clauses.size(); i++){
+            clauseAtoms[i] = new int[clauses.get(i).countLiterals()];
+            int j = 0;
+            for (Literal l : clauses.get(i).literals()){
+                clauseAtoms[i][j++] = atoms.valueToIndex(l.isNegated() ? l.negation() : l);
+            }
+        }
+        int[] parent = new int[atoms.size()];
+        for (int i = 0; i < parent.length; i++){
+            parent[i] = i;
+        }
+        for (int[] c : clauseAtoms){
+            for (int j = 1; j < c.length; j++){
+                union(parent, c[0], c[j]);
+            }
+        }
+        Map<Integer,Integer> rootsToComponents = new HashMap<Integer,Integer>();
+        List<Pair<List<Clause>,List<Pair<Clause,BigInteger>>>> components = new ArrayList<Pair<List<Clause>,List<Pair<Clause,BigInteger>>>>();
+        for (int i = 0; i < clauses.size(); i++){
+            if (clauseAtoms[i].length == 0){
+                continue;
+            }
+            int root = find(parent, clauseAtoms[i][0]);
+            Integer component = rootsToComponents.get(root);
+            if (component == null){
+                component = components.size();
+                rootsToComponents.put(root, component);
+                components.add(new Pair<List<Clause>,List<Pair<Clause,BigInteger>>>(new ArrayList<Clause>(), new ArrayList<Pair<Clause,BigInteger>>()));
+            }
+            if (i < this.hardProgram.size()){
+                components.get(component).r.add(clauses.get(i));
+            } else {
+                components.get(component).s.add(this.softProgram.get(i-this.hardProgram.size()));
+            }
+        }
+        return components;
+    }
+
+    private Set<Literal> solve(Pair<List<Clause>,List<Pair<Clause,BigInteger>>> component, long deadline){
+        Set<Literal> atoms = new HashSet<Literal>();
+        boolean negativeWeights = false;
+        for (Clause c : component.r){
+            for (Literal l : c.literals()){
+                atoms.add(l.isNegated() ? l.negation() : l);
+            }
+        }
+        for (Pair<Clause,BigInteger> c : component.s){
+            for (Literal l : c.r.literals()){
+                atoms.add(l.isNegated() ? l.negation() : l);
+            }
+            negativeWeights |= c.s.signum() < 0;
+        }
+        if (!negativeWeights && atoms.size() <= BRUTE_FORCE_MAX_ATOMS){
+            return enumerate(component, new ArrayList<Literal>(atoms));
+        }
+        long remaining = deadline-System.currentTimeMillis();
+        if (remaining <= 0){
+            this.timedOut = true;
+            return initialSolution(component, atoms);
+        }
+        GroundProgramSolver gps = new GroundProgramSolver(component.r, component.s);
+        gps.setOptimizationTimeout((int)Math.min(remaining, this.optimizationTimeout));
+        gps.setInitialState(this.initialState);
+        gps.setStratified(this.stratified);
+        Set<Literal> solution = gps.optimize(this.algorithm);
+        if (gps.timedOut()){
+            this.timedOut = true;
+            if (solution == null){
+                return initialSolution(component, atoms);
+            }
+        }
+        return solution;
+    }
+
+    /**
+     * @return the atoms of the component which are true in the initial state, or null if there is no initial state
+     * or if it violates some hard clause of the component
+     */
+    private Set<Literal> initialSolution(Pair<List<Clause>,List<Pair<Clause,BigInteger>>> component, Set<Literal> atoms){
+        if (this.initialState == null){
+            return null;
+        }
+        Set<Literal> solution = new HashSet<Literal>();
+        for (Literal atom : atoms){
+            if (this.initialState.contains(atom)){
+                solution.add(atom);
+            }
+        }
+        for (Clause c : component.r){
+            if (!isSatisfied(c, solution)){
+                return null;
+            }
+        }
+        return solution;
+    }
+
+    private static Set<Literal> enumerate(Pair<List<Clause>,List<Pair<Clause,BigInteger>>> component, List<Literal> atoms){
+        Set<Literal> best = null;
+        WeightSum bestPenalty = null;
+        Set<Literal> state = new HashSet<Literal>();
+        for (int assignment = 0; assignment < 1 << atoms.size(); assignment++){
+            state.clear();
+            for (int i = 0; i < atoms.size(); i++){
+                if ((assignment & (1 << i)) != 0){
+                    state.add(atoms.get(i));
+                }
+            }
+            boolean hardSatisfied = true;
+            for (Clause c : component.r){
+                if (!isSatisfied(c, state)){
+                    hardSatisfied = false;
+                    break;
+                }
+            }
+            if (hardSatisfied){
+                WeightSum statePenalty = new WeightSum();
+                for (Pair<Clause,BigInteger> c : component.s){
+                    if (!isSatisfied(c.r, state)){
+                        statePenalty.add(c.s);
+                    }
+                }
+                if (bestPenalty == null || statePenalty.compareTo(bestPenalty) < 0){
+                    bestPenalty = statePenalty;
+                    best = new HashSet<Literal>(state);
+                }
+            }
+        }
+        return best;
+    }
+
+    private static BigInteger penalty(Collection<Pair<Clause,BigInteger>> softProgram, Set<Literal> state){
+        WeightSum penalty = new WeightSum();
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s.signum() > 0 ? !isSatisfied(c.r, state) : isSatisfied(c.r, state)){
+                penalty.add(c.s.abs());
+            }
+        }
+        return penalty.toBigInteger();
+    }
+
+    private static boolean isSatisfied(Clause c, Set<Literal> state){
+        for (Literal l : c.literals()){
+            if (l.isNegated() ? !state.contains(l.negation()) : state.contains(l)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int find(int[] parent, int i){
+        while (parent[i] != i){
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j){
+        parent[find(parent, i)] = find(parent, j);
+    }
+
+    /**
+     * @return the penalty of the state returned by the last call of optimize() (positive weights of violated clauses
+     * plus absolute values of negative weights of satisfied clauses), or null if it returned null
+     */
+    public BigInteger penalty(){
+        return this.penalty;
+    }
+
+    /**
+     * @return the number of components found by the last call of optimize()
+     */
+    public int numComponents(){
+        return this.numComponents;
+    }
+
+    /**
+     * @return true if the solver of some component hit the time limit in the last call of optimize()
+     */
+    public boolean timedOut(){
+        return this.timedOut;
+    }
+
+    public void setOptimizationTimeout(int optimizationTimeout) {
+        this.optimizationTimeout = optimizationTimeout;
+    }
+
+    /**
+     * Sets the thread pool used to solve the components in parallel, null means that they are solved sequentially.
+     * @param parallel
+     */
+    public void setParallel(Parallel parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Sets the state from which the solvers of the components start, see GroundProgramSolver.setInitialState.
+     * @param initialState set of positive literals, null means no initial state
+     */
+    public void setInitialState(Set<Literal> initialState) {
+        this.initialState = initialState;
+    }
+
+    /**
+     * Switches the solvers of the components to stratified optimization, see GroundProgramSolver.setStratified.
+     * @param stratified
+     */
+    public void setStratified(boolean stratified) {
+        this.stratified = stratified;
+    }
+
+    /**
+     * Selects the algorithm used by the solvers of the components, see GroundProgramSolver.optimize(int).
+     * @param algorithm GroundProgramSolver.PB_OPTIMIZATION (the default) or GroundProgramSolver.CORE_GUIDED
+     */
+    public void setAlgorithm(int algorithm) {
+        this.algorithm = algorithm;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Literal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of interned ground atoms. Every ground atom gets a positive integer id and its negation gets the same id
+ * with the minus sign. Both the atom and its negation are stored, so translating literals to ids and back does not
+ * allocate new objects once the atom has been interned. Ids are never reused, so the table can be shared by several
+ * MarkovLogic objects (and threads).
+ */
+public class GroundAtomTable {
+
+    private final ConcurrentHashMap<Literal,Integer> ids = new ConcurrentHashMap<Literal,Integer>();
+
+    private volatile Literal[] atoms = new Literal[16];
+
+    private volatile Literal[] negatedAtoms = new Literal[16];
+
+    private volatile int size = 0;
+
+    /**
+     * Returns the signed id of the given ground literal, the underlying atom is added to the table if it is not there yet.
+     * @param literal ground literal
+     * @return positive id if the literal is not negated, negative id otherwise
+     */
+    public int intern(Literal literal){
+        Integer id = ids.get(literal);
+        if (id != null){
+            return id;
+        }
+        return add(literal);
+    }
+
+    private synchronized int add(Literal literal){
+        Integer id = ids.get(literal);
+        if (id != null){
+            return id;
+        }
+        Literal atom = literal.isNegated() ? literal.negation() : literal;
+        Literal negatedAtom = literal.isNegated() ? literal : literal.negation();
+        int newId = size+1;
+        if (newId >= atoms.length){
+            Literal[] newNegatedAtoms = Arrays.copyOf(negatedAtoms, 2*newId);
+            Literal[] newAtoms = Arrays.copyOf(atoms, 2*newId);
+            newAtoms[newId] = atom;
+            newNegatedAtoms[newId] = negatedAtom;
+            this.negatedAtoms = newNegatedAtoms;
+            this.atoms = newAtoms;
+        } else {
+            atoms[newId] = atom;
+            negatedAtoms[newId] = negatedAtom;
+        }
+        this.size = newId;
+        ids.put(atom, newId);
+        ids.put(negatedAtom, -newId);
+        return literal.isNegated() ? -newId : newId;
+    }
+
+    /**
+     * @param literal ground literal
+     * @return signed id of the given literal or 0 if the underlying atom has not been interned
+     */
+    public int id(Literal literal){
+        Integer id = ids.get(literal);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * @param id signed id
+     * @return the interned literal with the given signed id
+     */
+    public Literal literal(int id){
+        return id > 0 ? atoms[id] : negatedAtoms[-id];
+    }
+
+    /**
+     * @return the number of interned atoms (the largest id)
+     */
+    public int size(){
+        return size;
+    }
+}
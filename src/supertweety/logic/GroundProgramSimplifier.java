@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.collections.ValueToIndex;
+import ida.utils.tuples.Pair;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Simplifies a ground program before it is optimized. Unit propagation is run on the hard clauses (the evidence
+ * is given as hard unit clauses), the clauses satisfied by the forced literals are removed and the false literals
+ * are removed from the other clauses. Removing a soft clause which is satisfied (or falsified) by the forced
+ * literals changes the penalty of every state by the same amount, so the optimal states of the simplified program
+ * extended by the forced literals are the optimal states of the original program.
+ */
+public class GroundProgramSimplifier {
+
+    private List<Clause> hardProgram = new ArrayList<Clause>();
+
+    private List<Pair<Clause,BigInteger>> softProgram = new ArrayList<Pair<Clause,BigInteger>>();
+
+    private ValueToIndex<Literal> atomsToIndices = new ValueToIndex<Literal>(1);
+
+    //0 = unassigned, 1 = true, -1 = false
+    private int[] assignment;
+
+    private List<Clause> simplifiedHardProgram;
+
+    private List<Pair<Clause,BigInteger>> simplifiedSoftProgram;
+
+    private Set<Literal> forcedLiterals;
+
+    public GroundProgramSimplifier(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> softProgram){
+        this.hardProgram.addAll(hardProgram);
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s == null){
+                this.hardProgram.add(c.r);
+            } else {
+                this.softProgram.add(c);
+            }
+        }
+    }
+
+    /**
+     * Runs the unit propagation and simplifies the program.
+     * @return false if the hard clauses cannot be satisfied (the unit propagation derived an empty clause)
+     */
+    public boolean simplify(){
+        int[][] hard = new int[this.hardProgram.size()][];
+        for (int i = 0; i < hard.length; i++){
+            hard[i] = toDimacs(this.hardProgram.get(i));
+        }
+        int[][] soft = new int[this.softProgram.size()][];
+        for (int i = 0; i < soft.length; i++){
+            soft[i] = toDimacs(this.softProgram.get(i).r);
+        }
+        int numAtoms = this.atomsToIndices.size();
+        this.assignment = new int[numAtoms+1];
+        //hard clauses indexed by the negations of the literals they contain (they lose a literal when it is assigned)
+        List<List<Integer>> occurrences = new ArrayList<List<Integer>>(Collections.<List<Integer>>nCopies(2*numAtoms+1, null));
+        int[] unassigned = new int[hard.length];
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int i = 0; i < hard.length; i++){
+            unassigned[i] = hard[i].length;
+            if (hard[i].length == 0){
+                return false;
+            } else if (hard[i].length == 1){
+                queue.add(hard[i][0]);
+            }
+            for (int l : hard[i]){
+                int index = numAtoms-l;
+                if (occurrences.get(index) == null){
+                    occurrences.set(index, new ArrayList<Integer>());
+                }
+                occurrences.get(index).add(i);
+            }
+        }
+        while (!queue.isEmpty()){
+            int literal = queue.poll();
+            int value = value(literal);
+            if (value == 1){
+                continue;
+            } else if (value == -1){
+                return false;
+            }
+            this.assignment[Math.abs(literal)] = literal > 0 ? 1 : -1;
+            List<Integer> falsified = occurrences.get(numAtoms+literal);
+            if (falsified != null){
+                for (int i : falsified){
+                    if (--unassigned[i] <= 1 && !isSatisfied(hard[i])){
+                        int remaining = 0;
+                        for (int l : hard[i]){
+                            if (value(l) == 0){
+                                remaining = l;
+                                break;
+                            }
+                        }
+                        if (remaining == 0){
+                            return false;
+                        }
+                        queue.add(remaining);
+                    }
+                }
+            }
+        }
+        this.forcedLiterals = new HashSet<Literal>();
+        for (int i = 1; i <= numAtoms; i++){
+            if (this.assignment[i] != 0){
+                Literal atom = this.atomsToIndices.indexToValue(i);
+                this.forcedLiterals.add(this.assignment[i] > 0 ? atom : atom.negation());
+            }
+        }
+        this.simplifiedHardProgram = new ArrayList<Clause>();
+        for (int[] c : hard){
+            Clause simplified = simplify(c);
+            if (simplified != null){
+                this.simplifiedHardProgram.add(simplified);
+            }
+        }
+        this.simplifiedSoftProgram = new ArrayList<Pair<Clause,BigInteger>>();
+        for (int i = 0; i < soft.length; i++){
+            Clause simplified = simplify(soft[i]);
+            if (simplified != null && simplified.countLiterals() > 0){
+                this.simplifiedSoftProgram.add(new Pair<Clause,BigInteger>(simplified, this.softProgram.get(i).s));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the clause without the false literals, or null if it is satisfied by the forced literals
+     */
+    private Clause simplify(int[] clause){
+        List<Literal> literals = new ArrayList<Literal>();
+        for (int l : clause){
+            int value = value(l);
+            if (value == 1){
+                return null;
+            } else if (value == 0){
+                Literal atom = this.atomsToIndices.indexToValue(Math.abs(l));
+                literals.add(l > 0 ? atom : atom.negation());
+            }
+        }
+        return new Clause(literals);
+    }
+
+    private boolean isSatisfied(int[] clause){
+        for (int l : clause){
+            if (value(l) == 1){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int value(int literal){
+        int value = this.assignment[Math.abs(literal)];
+        return literal > 0 ? value : -value;
+    }
+
+    private int[] toDimacs(Clause c){
+        int[] clause = new int[c.countLiterals()];
+        int i = 0;
+        for (Literal l : c.literals()){
+            clause[i++] = l.isNegated() ? -this.atomsToIndices.valueToIndex(l.negation()) : this.atomsToIndices.valueToIndex(l);
+        }
+        return clause;
+    }
+
+    /**
+     * @return the hard clauses which are not satisfied by the forced literals, without the false literals
+     */
+    public List<Clause> hardProgram(){
+        return this.simplifiedHardProgram;
+    }
+
+    /**
+     * @return the soft clauses which are not satisfied by the forced literals, without the false literals (the soft
+     * clauses all of whose literals are false are removed as well)
+     */
+    public List<Pair<Clause,BigInteger>> softProgram(){
+        return this.simplifiedSoftProgram;
+    }
+
+    /**
+     * @return the literals which are true in every state satisfying the hard clauses (as found by unit propagation)
+     */
+    public Set<Literal> forcedLiterals(){
+        return this.forcedLiterals;
+    }
+}
@@ -15,12 +15,25 @@ import ida.ilp.logic.Literal;
 import ida.utils.Sugar;
 import ida.utils.collections.ValueToIndex;
 import ida.utils.tuples.Pair;
+import org.sat4j.core.LiteralsUtils;
+import org.sat4j.core.Vec;
 import org.sat4j.core.VecInt;
 import org.sat4j.maxsat.WeightedMaxSatDecorator;
 import org.sat4j.minisat.SolverFactory;
+import org.sat4j.minisat.core.IPhaseSelectionStrategy;
+import org.sat4j.minisat.orders.VarOrderHeap;
+import org.sat4j.pb.IPBSolver;
+import org.sat4j.pb.ObjectiveFunction;
+import org.sat4j.pb.OptToPBSATAdapter;
+import org.sat4j.pb.PseudoOptDecorator;
+import org.sat4j.pb.core.PBSolver;
 import org.sat4j.specs.ContradictionException;
 import org.sat4j.specs.IProblem;
+import org.sat4j.specs.IVecInt;
 import org.sat4j.specs.ISolver;
+import org.sat4j.specs.TimeoutException;
+import supertweety.misc.WeightSum;
+import supertweety.misc.Weights;
 
 import java.math.BigInteger;
 import java.util.*;
@@ -36,12 +49,36 @@ public class GroundProgramSolver {
 
     private List<int[]> hardDimacsClauses;
 
-    private List<Pair<int[],BigInteger>> softDimacsClauses;
+    private List<int[]> softDimacsClauses;
+
+    //the weights of softDimacsClauses (in the same order)
+    private Weights softWeights;
 
     private ValueToIndex<Literal> literalsToIndices = new ValueToIndex<Literal>(1);
 
     private int optimizationTimeout = Integer.MAX_VALUE;
 
+    private boolean timedOut;
+
+    private volatile ISolver runningSolver;
+
+    private volatile boolean stopped;
+
+    private Set<Literal> initialState;
+
+    private boolean stratified = false;
+
+    //a stratum which is not separated from the next one by a lexicographic gap is closed when it has at least
+    //this many soft clauses per distinct weight
+    private final static int STRATUM_CLAUSES_PER_WEIGHT = 2;
+
+    public final static int PB_OPTIMIZATION = 1, CORE_GUIDED = 2;
+
+    private final static int CORE_TRIMMING_ROUNDS = 3;
+
+    //lower bound on the optimal penalty proved by the running (or the last) core-guided optimization
+    private volatile BigInteger lowerBound;
+
     public GroundProgramSolver(Collection<Clause> hardProgram){
         for (Clause c : hardProgram){
             this.hardProgram.add(c);
@@ -61,6 +98,11 @@ public class GroundProgramSolver {
             }
         }
         this.softDimacsClauses = this.toSoftDimacsClauses(this.softProgram);
+        List<BigInteger> weights = new ArrayList<BigInteger>(this.softProgram.size());
+        for (Pair<Clause,BigInteger> c : this.softProgram){
+            weights.add(c.s);
+        }
+        this.softWeights = new Weights(weights);
         for (Clause c : hardProgram){
             for (Literal literal : c.literals()){
                 literalsToIndices.valueToIndex(literal);
@@ -103,9 +145,35 @@ public class GroundProgramSolver {
         return null;
     }
 
+    /**
+     * Optimizes the ground program by the given algorithm: PB_OPTIMIZATION (SAT4J's pseudo-boolean optimizer,
+     * optionally stratified, see setStratified) or CORE_GUIDED (see optimizeCoreGuided()).
+     * @param algorithm PB_OPTIMIZATION or CORE_GUIDED
+     * @return the set of positive literals true in the optimal state, or null (see optimize())
+     */
+    public Set<Literal> optimize(int algorithm){
+        if (algorithm == CORE_GUIDED){
+            return optimizeCoreGuided();
+        }
+        return optimize();
+    }
+
     public Set<Literal> optimize(){
+        if (this.stratified && this.softDimacsClauses != null && !this.softDimacsClauses.isEmpty()){
+            return optimizeStratified();
+        }
+        this.timedOut = false;
         try {
-            WeightedMaxSatDecorator solver = new WeightedMaxSatDecorator(org.sat4j.pb.SolverFactory.newDefaultOptimizer());
+            PBSolver pbSolver = org.sat4j.pb.SolverFactory.newDefault();
+            int[] hints = this.initialState == null ? null : initialAssignment();
+            if (hints != null && pbSolver.getOrder() instanceof VarOrderHeap){
+                VarOrderHeap order = (VarOrderHeap)pbSolver.getOrder();
+                order.setPhaseSelectionStrategy(new HintedPhaseSelectionStrategy(order.getPhaseSelectionStrategy(), hints));
+            }
+            //the same optimizer as org.sat4j.pb.SolverFactory.newDefaultOptimizer(), but with access to the underlying solver
+            IPBSolver optimizer = new OptToPBSATAdapter(new PseudoOptDecorator(pbSolver));
+            WeightedMaxSatDecorator solver = new WeightedMaxSatDecorator(optimizer);
+            this.runningSolver = solver;
             solver.newVar(this.literalsToIndices.size());
             solver.setExpectedNumberOfClauses(softProgram.size()+hardProgram.size());
             //solver.setTopWeight(BigInteger.valueOf(Integer.MAX_VALUE));
@@ -117,11 +185,21 @@ public class GroundProgramSolver {
             }
 
             if (this.softDimacsClauses != null) {
-                for (Pair<int[], BigInteger> clause : this.softDimacsClauses) {
-                    solver.addSoftClause(clause.s, new VecInt(clause.r));
+                for (int i = 0; i < this.softDimacsClauses.size(); i++) {
+                    solver.addSoftClause(this.softWeights.get(i), new VecInt(this.softDimacsClauses.get(i)));
                 }
             }
+            if (this.stopped){
+                this.timedOut = true;
+                return null;
+            }
+            if (hints != null && pbSolver.isSatisfiable(new VecInt(hints))){
+                //the initial state satisfies the hard clauses, so its penalty is an upper bound on the optimum
+                solver.forceObjectiveValueTo(solver.getObjectiveFunction().calculateDegree(pbSolver));
+            }
             if (solver.isSatisfiable()) {
+                //when the time limit is reached after a model has been found, SAT4J returns the best model found
+                this.timedOut = optimizer instanceof OptToPBSATAdapter && !isOptimal((OptToPBSATAdapter)optimizer);
                 int[] model = solver.model();
                 Set<Literal> solution = new HashSet<Literal>();
                 model = solver.model();
@@ -133,14 +211,508 @@ public class GroundProgramSolver {
                 }
                 return solution;
             }
+        } catch (TimeoutException te){
+            this.timedOut = true;
+            return null;
         } catch (Exception e){
             return null;
+        } finally {
+            this.runningSolver = null;
         }
         return null;
     }
 
-    private List<Pair<int[],BigInteger>> toSoftDimacsClauses(Collection<Pair<Clause, BigInteger>> program){
-        List<Pair<int[],BigInteger>> retVal = new ArrayList<Pair<int[],BigInteger>>();
+    /**
+     * Stops optimize() (it can be called from another thread), which then returns null as if the time limit
+     * had been reached.
+     */
+    public void stop(){
+        this.stopped = true;
+        ISolver solver = this.runningSolver;
+        if (solver != null){
+            solver.expireTimeout();
+        }
+    }
+
+    /**
+     * Stratified optimization: the soft clauses are split into strata by their absolute weights (see strata()) and
+     * the strata are added to the objective one by one, from the heaviest. Every stage is solved by a new PB solver
+     * which starts from the model of the previous stage (as phase hints and as an upper bound). When a stratum is
+     * separated from the lighter clauses by a lexicographic gap, the cost of the strata solved so far is fixed by a pseudo-boolean constraint and removed from
+     * the objective. Soft clauses are relaxed by fresh variables, the relaxation variable of a clause with negative
+     * weight is implied by every literal of the clause.
+     */
+    private Set<Literal> optimizeStratified(){
+        this.timedOut = false;
+        long deadline = optimizationTimeout == Integer.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+optimizationTimeout;
+        List<Boolean> gaps = new ArrayList<Boolean>();
+        List<List<Integer>> strata = strata(gaps);
+        int numVariables = this.literalsToIndices.size();
+        int[] hints = this.initialState == null ? null : initialAssignment();
+        int[] best = null;
+        List<List<Integer>> fixedStrata = new ArrayList<List<Integer>>();
+        List<BigInteger> fixedCosts = new ArrayList<BigInteger>();
+        List<Integer> objective = new ArrayList<Integer>();
+        try {
+            for (int k = 0; k < strata.size(); k++){
+                objective.addAll(strata.get(k));
+                PBSolver pbSolver = org.sat4j.pb.SolverFactory.newDefault();
+                if (hints != null && pbSolver.getOrder() instanceof VarOrderHeap){
+                    VarOrderHeap order = (VarOrderHeap)pbSolver.getOrder();
+                    order.setPhaseSelectionStrategy(new HintedPhaseSelectionStrategy(order.getPhaseSelectionStrategy(), hints));
+                }
+                pbSolver.newVar(numVariables+this.softDimacsClauses.size());
+                try {
+                    for (int[] clause : this.hardDimacsClauses){
+                        pbSolver.addClause(new VecInt(clause));
+                    }
+                } catch (ContradictionException ce){
+                    //no solution
+                    return null;
+                }
+                for (int i = 0; i < this.softDimacsClauses.size(); i++){
+                    int[] clause = this.softDimacsClauses.get(i);
+                    int relaxation = numVariables+i+1;
+                    if (this.softWeights.signum(i) >= 0){
+                        int[] relaxed = Arrays.copyOf(clause, clause.length+1);
+                        relaxed[clause.length] = relaxation;
+                        pbSolver.addClause(new VecInt(relaxed));
+                    } else {
+                        for (int literal : clause){
+                            pbSolver.addClause(new VecInt(new int[]{-literal, relaxation}));
+                        }
+                    }
+                }
+                for (int i = 0; i < fixedStrata.size(); i++){
+                    addUpperBound(pbSolver, fixedStrata.get(i), fixedCosts.get(i));
+                }
+                if (best != null){
+                    addUpperBound(pbSolver, objective, cost(objective, best));
+                }
+                VecInt vars = new VecInt();
+                Vec<BigInteger> coeffs = new Vec<BigInteger>();
+                for (int i : objective){
+                    vars.push(numVariables+i+1);
+                    coeffs.push(this.softWeights.get(i).abs());
+                }
+                pbSolver.setObjectiveFunction(new ObjectiveFunction(vars, coeffs));
+                OptToPBSATAdapter optimizer = new OptToPBSATAdapter(new PseudoOptDecorator(pbSolver));
+                long remaining = deadline == Long.MAX_VALUE ? Integer.MAX_VALUE : deadline-System.currentTimeMillis();
+                if (remaining <= 0 || this.stopped){
+                    this.timedOut = true;
+                    break;
+                }
+                optimizer.setTimeoutMs(remaining);
+                this.runningSolver = optimizer;
+                if (!optimizer.isSatisfiable()){
+                    return null;
+                }
+                best = optimizer.model();
+                if (!isOptimal(optimizer)){
+                    this.timedOut = true;
+                    break;
+                }
+                hints = best;
+                if (gaps.get(k)){
+                    fixedStrata.add(objective);
+                    fixedCosts.add(cost(objective, best));
+                    objective = new ArrayList<Integer>();
+                }
+            }
+        } catch (TimeoutException te){
+            //the model of the last finished stage is returned
+            this.timedOut = true;
+        } catch (ContradictionException ce){
+            return null;
+        } finally {
+            this.runningSolver = null;
+        }
+        if (best == null){
+            return null;
+        }
+        return solution(best, numVariables);
+    }
+
+    /**
+     * Core-guided optimization in the style of OLL, using the plain SAT solver (as solve()) with assumptions. Every
+     * soft clause gets a relaxation variable which is assumed false. Whenever the assumptions are unsatisfiable,
+     * the minimum weight w of the assumptions in the unsatisfiable core is added to the lower bound, w is subtracted
+     * from the weights of these assumptions and the core is relaxed by a totalizer encoding of the number of
+     * violated assumptions in it - the assumption that at most one of them is violated is added with weight w (and,
+     * when an assumption "at most k-1" is itself in a core, the assumption "at most k" is added with the weight
+     * of that core). The assumptions are stratified by their weights: only those with weight at least the current
+     * level are used and the level is lowered to the next smaller weight whenever they are satisfiable. The first
+     * model satisfying all the assumptions is optimal. The lower bound can be read by lowerBound() while
+     * the optimization runs.
+     * @return the set of positive literals true in an optimal state, or null if the hard clauses are not satisfiable
+     * or if the time limit was reached (or the solver was stopped)
+     */
+    private Set<Literal> optimizeCoreGuided(){
+        this.timedOut = false;
+        this.lowerBound = BigInteger.ZERO;
+        long deadline = optimizationTimeout == Integer.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+optimizationTimeout;
+        int numVariables = this.literalsToIndices.size();
+        ISolver solver = SolverFactory.newDefault();
+        solver.newVar(numVariables);
+        this.runningSolver = solver;
+        try {
+            try {
+                for (int[] clause : this.hardDimacsClauses){
+                    solver.addClause(new VecInt(clause));
+                }
+            } catch (ContradictionException ce){
+                //no solution
+                return null;
+            }
+            //the remaining weights of the assumptions
+            Map<Integer,BigInteger> weights = new LinkedHashMap<Integer,BigInteger>();
+            //assumptions "at most k-1 violated" -> (outputs of the totalizer, k)
+            Map<Integer,Pair<int[],Integer>> totalizerAssumptions = new HashMap<Integer,Pair<int[],Integer>>();
+            if (this.softDimacsClauses != null){
+                for (int i = 0; i < this.softDimacsClauses.size(); i++){
+                    int[] clause = this.softDimacsClauses.get(i);
+                    int signum = this.softWeights.signum(i);
+                    if (signum == 0 || (signum < 0 && clause.length == 0)){
+                        continue;
+                    }
+                    int relaxation = solver.nextFreeVarId(true);
+                    if (signum > 0){
+                        int[] relaxed = Arrays.copyOf(clause, clause.length+1);
+                        relaxed[clause.length] = relaxation;
+                        solver.addClause(new VecInt(relaxed));
+                    } else {
+                        //negative weight is paid when the clause is satisfied, i.e. clause implies relaxation
+                        for (int literal : clause){
+                            solver.addClause(new VecInt(new int[]{-literal, relaxation}));
+                        }
+                    }
+                    addWeight(weights, -relaxation, this.softWeights.get(i).abs());
+                }
+            }
+            //only the assumptions with weight at least level are used, the level is lowered when they are satisfiable
+            BigInteger level = nextLevel(weights, null);
+            while (true){
+                long remaining = deadline == Long.MAX_VALUE ? Integer.MAX_VALUE : deadline-System.currentTimeMillis();
+                if (remaining <= 0 || this.stopped){
+                    this.timedOut = true;
+                    return null;
+                }
+                solver.setTimeoutMs(remaining);
+                VecInt assumptions = new VecInt();
+                for (Map.Entry<Integer,BigInteger> assumption : weights.entrySet()){
+                    if (level == null || assumption.getValue().compareTo(level) >= 0){
+                        assumptions.push(assumption.getKey());
+                    }
+                }
+                if (solver.isSatisfiable(assumptions)){
+                    BigInteger nextLevel = nextLevel(weights, level);
+                    if (nextLevel != null){
+                        level = nextLevel;
+                        continue;
+                    }
+                    return solution(solver.model(), numVariables);
+                }
+                List<Integer> core = core(solver, weights);
+                if (core.isEmpty()){
+                    //the hard clauses are not satisfiable
+                    return null;
+                }
+                //the core is trimmed by solving it again as assumptions (the solver need not return a minimal core)
+                for (int i = 0; i < CORE_TRIMMING_ROUNDS && core.size() > 1; i++){
+                    VecInt coreAssumptions = new VecInt();
+                    for (int assumption : core){
+                        coreAssumptions.push(assumption);
+                    }
+                    if (solver.isSatisfiable(coreAssumptions)){
+                        break;
+                    }
+                    List<Integer> trimmed = core(solver, weights);
+                    if (trimmed.isEmpty() || trimmed.size() >= core.size()){
+                        break;
+                    }
+                    core = trimmed;
+                }
+                BigInteger minWeight = null;
+                for (int assumption : core){
+                    if (minWeight == null || weights.get(assumption).compareTo(minWeight) < 0){
+                        minWeight = weights.get(assumption);
+                    }
+                }
+                this.lowerBound = this.lowerBound.add(minWeight);
+                for (int assumption : core){
+                    BigInteger weight = weights.remove(assumption).subtract(minWeight);
+                    if (weight.signum() > 0){
+                        weights.put(assumption, weight);
+                    }
+                    Pair<int[],Integer> totalizer = totalizerAssumptions.get(assumption);
+                    if (totalizer != null && totalizer.s < totalizer.r.length){
+                        //the relaxed part (minWeight) of "at most k-1 violated" is moved to "at most k violated"
+                        int next = -totalizer.r[totalizer.s];
+                        totalizerAssumptions.put(next, new Pair<int[],Integer>(totalizer.r, totalizer.s+1));
+                        addWeight(weights, next, minWeight);
+                    }
+                }
+                if (core.size() == 1){
+                    solver.addClause(new VecInt(new int[]{-core.get(0)}));
+                } else {
+                    int[] violated = new int[core.size()];
+                    for (int i = 0; i < violated.length; i++){
+                        violated[i] = -core.get(i);
+                    }
+                    int[] outputs = totalizer(solver, violated, 0, violated.length);
+                    //at least one of the assumptions in the core is violated
+                    solver.addClause(new VecInt(new int[]{outputs[0]}));
+                    totalizerAssumptions.put(-outputs[1], new Pair<int[],Integer>(outputs, 2));
+                    addWeight(weights, -outputs[1], minWeight);
+                }
+            }
+        } catch (TimeoutException te){
+            this.timedOut = true;
+            return null;
+        } catch (ContradictionException ce){
+            //the relaxation clauses, the totalizers and the units from the cores are satisfiable together with
+            //the hard clauses whenever the hard clauses are, so the hard clauses are not satisfiable
+            return null;
+        } finally {
+            this.runningSolver = null;
+        }
+    }
+
+    /**
+     * @return the assumptions from the unsatisfiable core found by the last call of the solver
+     */
+    private static List<Integer> core(ISolver solver, Map<Integer,BigInteger> weights){
+        IVecInt explanation = solver.unsatExplanation();
+        List<Integer> core = new ArrayList<Integer>();
+        if (explanation != null){
+            for (int i = 0; i < explanation.size(); i++){
+                if (weights.containsKey(explanation.get(i))){
+                    core.add(explanation.get(i));
+                }
+            }
+        }
+        return core;
+    }
+
+    /**
+     * @return the largest weight of an assumption which is smaller than level (any weight if level is null),
+     * or null if there is no such weight
+     */
+    private static BigInteger nextLevel(Map<Integer,BigInteger> weights, BigInteger level){
+        BigInteger next = null;
+        for (BigInteger weight : weights.values()){
+            if ((level == null || weight.compareTo(level) < 0) && (next == null || weight.compareTo(next) > 0)){
+                next = weight;
+            }
+        }
+        return next;
+    }
+
+    private static void addWeight(Map<Integer,BigInteger> weights, int assumption, BigInteger weight){
+        BigInteger current = weights.get(assumption);
+        weights.put(assumption, current == null ? weight : current.add(weight));
+    }
+
+    /**
+     * Encodes (by a totalizer) the number of true literals among inputs[from..to-1].
+     * @return the outputs, the i-th output (from 0) is implied to be true when at least i+1 of the inputs are true
+     */
+    private static int[] totalizer(ISolver solver, int[] inputs, int from, int to) throws ContradictionException {
+        if (to-from == 1){
+            return new int[]{inputs[from]};
+        }
+        int middle = (from+to)/2;
+        int[] left = totalizer(solver, inputs, from, middle);
+        int[] right = totalizer(solver, inputs, middle, to);
+        int[] outputs = new int[to-from];
+        for (int i = 0; i < outputs.length; i++){
+            outputs[i] = solver.nextFreeVarId(true);
+        }
+        for (int i = 0; i <= left.length; i++){
+            for (int j = 0; j <= right.length; j++){
+                if (i+j > 0){
+                    VecInt clause = new VecInt();
+                    if (i > 0){
+                        clause.push(-left[i-1]);
+                    }
+                    if (j > 0){
+                        clause.push(-right[j-1]);
+                    }
+                    clause.push(outputs[i+j-1]);
+                    solver.addClause(clause);
+                }
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * SAT4J does not mark the model as optimal when the search for a better one stops because the objective
+     * is already at its minimum value.
+     */
+    private static boolean isOptimal(OptToPBSATAdapter optimizer){
+        return optimizer.isOptimal() || optimizer.getObjectiveFunction().minValue().equals(optimizer.getCurrentObjectiveValue());
+    }
+
+    /**
+     * Splits the soft clauses into strata by their absolute weights (heaviest first). A stratum is closed when
+     * the greatest common divisor of the weights since the previous gap is larger than the sum of the weights of all
+     * lighter clauses, so that no change of the cost of the lighter clauses can compensate a change of the cost
+     * of the heavier ones (then gaps gets true for it) or, otherwise, when it contains at least STRATUM_CLAUSES_PER_WEIGHT clauses per distinct weight
+     * (so that programs with very diverse weights are not split into too many strata).
+     * @param gaps list to which, for every stratum, it is added whether it is followed by a lexicographic gap
+     * @return the strata as lists of indices of soft clauses
+     */
+    private List<List<Integer>> strata(List<Boolean> gaps){
+        TreeMap<BigInteger,List<Integer>> levels = new TreeMap<BigInteger,List<Integer>>(Collections.<BigInteger>reverseOrder());
+        BigInteger lighter = BigInteger.ZERO;
+        for (int i = 0; i < this.softDimacsClauses.size(); i++){
+            BigInteger weight = this.softWeights.get(i).abs();
+            if (!levels.containsKey(weight)){
+                levels.put(weight, new ArrayList<Integer>());
+            }
+            levels.get(weight).add(i);
+            lighter = lighter.add(weight);
+        }
+        List<List<Integer>> strata = new ArrayList<List<Integer>>();
+        List<Integer> stratum = new ArrayList<Integer>();
+        int distinctWeights = 0;
+        //gcd of the weights since the last gap, every two different costs of these clauses differ at least by it
+        BigInteger gcd = BigInteger.ZERO;
+        for (Map.Entry<BigInteger,List<Integer>> level : levels.entrySet()){
+            stratum.addAll(level.getValue());
+            distinctWeights++;
+            gcd = gcd.gcd(level.getKey());
+            lighter = lighter.subtract(level.getKey().multiply(BigInteger.valueOf(level.getValue().size())));
+            boolean gap = gcd.compareTo(lighter) > 0;
+            if (gap || stratum.size() >= STRATUM_CLAUSES_PER_WEIGHT*distinctWeights){
+                strata.add(stratum);
+                gaps.add(gap);
+                stratum = new ArrayList<Integer>();
+                distinctWeights = 0;
+                if (gap){
+                    gcd = BigInteger.ZERO;
+                }
+            }
+        }
+        if (!stratum.isEmpty()){
+            strata.add(stratum);
+            gaps.add(true);
+        }
+        return strata;
+    }
+
+    /**
+     * @return the sum of the absolute weights of the given soft clauses which are penalized in the given model
+     */
+    private BigInteger cost(List<Integer> softClauses, int[] model){
+        Set<Integer> trueLiterals = new HashSet<Integer>();
+        for (int literal : model){
+            trueLiterals.add(literal);
+        }
+        WeightSum cost = new WeightSum();
+        for (int i : softClauses){
+            boolean satisfied = false;
+            for (int literal : this.softDimacsClauses.get(i)){
+                if (trueLiterals.contains(literal)){
+                    satisfied = true;
+                    break;
+                }
+            }
+            if ((this.softWeights.signum(i) >= 0) != satisfied){
+                this.softWeights.addAbsTo(cost, i);
+            }
+        }
+        return cost.toBigInteger();
+    }
+
+    private void addUpperBound(IPBSolver solver, List<Integer> softClauses, BigInteger bound) throws ContradictionException {
+        VecInt lits = new VecInt();
+        Vec<BigInteger> coeffs = new Vec<BigInteger>();
+        for (int i : softClauses){
+            lits.push(this.literalsToIndices.size()+i+1);
+            coeffs.push(this.softWeights.get(i).abs());
+        }
+        solver.addPseudoBoolean(lits, coeffs, false, bound);
+    }
+
+    /**
+     * @return the positive literals whose variables (among the first numVariables ones) are true in the model
+     */
+    private Set<Literal> solution(int[] model, int numVariables){
+        Set<Literal> solution = new HashSet<Literal>();
+        for (int i : model){
+            Literal literal;
+            if (i > 0 && i <= numVariables && !(literal = literalsToIndices.indexToValue(i)).isNegated()){
+                solution.add(literal);
+            }
+        }
+        return solution;
+    }
+
+    /**
+     * @return the literals over all variables which are true in the initial state
+     */
+    private int[] initialAssignment(){
+        int[] assignment = new int[this.literalsToIndices.size()];
+        for (int i = 1; i <= assignment.length; i++){
+            //negated literals also have indices but their variables do not occur in the clauses
+            Literal literal = this.literalsToIndices.indexToValue(i);
+            assignment[i-1] = !literal.isNegated() && this.initialState.contains(literal) ? i : -i;
+        }
+        return assignment;
+    }
+
+    /**
+     * Phase selection strategy which starts every search from the phases given by an initial assignment, the phases
+     * are then updated by the decorated strategy.
+     */
+    private static class HintedPhaseSelectionStrategy implements IPhaseSelectionStrategy {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IPhaseSelectionStrategy strategy;
+
+        private final int[] hints;
+
+        private HintedPhaseSelectionStrategy(IPhaseSelectionStrategy strategy, int[] hints){
+            this.strategy = strategy;
+            this.hints = hints;
+        }
+
+        public void updateVar(int p) {
+            this.strategy.updateVar(p);
+        }
+
+        public void init(int nlength) {
+            this.strategy.init(nlength);
+            for (int literal : this.hints){
+                int var = Math.abs(literal);
+                if (var < nlength){
+                    this.strategy.init(var, literal > 0 ? LiteralsUtils.posLit(var) : LiteralsUtils.negLit(var));
+                }
+            }
+        }
+
+        public void init(int var, int p) {
+            this.strategy.init(var, p);
+        }
+
+        public void assignLiteral(int p) {
+            this.strategy.assignLiteral(p);
+        }
+
+        public int select(int var) {
+            return this.strategy.select(var);
+        }
+
+        public void updateVarAtDecisionLevel(int q) {
+            this.strategy.updateVarAtDecisionLevel(q);
+        }
+    }
+
+    private List<int[]> toSoftDimacsClauses(Collection<Pair<Clause, BigInteger>> program){
+        List<int[]> retVal = new ArrayList<int[]>();
         for (Pair<Clause,BigInteger> c : program) {
             int[] clause = new int[c.r.literals().size()];
             int i = 0;
@@ -153,7 +725,7 @@ public class GroundProgramSolver {
                 i++;
             }
 
-            retVal.add(new Pair<int[],BigInteger>(clause,c.s));
+            retVal.add(clause);
         }
         return retVal;
     }
@@ -187,7 +759,45 @@ public class GroundProgramSolver {
         System.out.println(gps.optimize());
     }
 
+    /**
+     * @return true if the last call of optimize() was stopped by the time limit (or by stop()), it then returned
+     * the best state found so far (which need not be optimal) or null if no state had been found
+     */
+    public boolean timedOut(){
+        return this.timedOut;
+    }
+
     public void setOptimizationTimeout(int optimizationTimeout) {
         this.optimizationTimeout = optimizationTimeout;
     }
+
+    /**
+     * @return the lower bound on the optimal penalty proved by the running (or the last) call of optimize(CORE_GUIDED),
+     * it can be called from another thread, null if optimize(CORE_GUIDED) has not been called
+     */
+    public BigInteger lowerBound(){
+        return this.lowerBound;
+    }
+
+    /**
+     * Switches optimize() to stratified optimization, in which the soft clauses are added to the objective in strata
+     * of decreasing weights and the cost of every stratum which is heavier than all the lighter clauses together
+     * is fixed before the lighter clauses are optimized. It is meant for programs with large ranges of weights
+     * (e.g. lexicographic weights), the result is optimal in both modes. It does not change optimize(CORE_GUIDED),
+     * which stratifies its assumptions by itself.
+     * @param stratified
+     */
+    public void setStratified(boolean stratified) {
+        this.stratified = stratified;
+    }
+
+    /**
+     * Sets the state from which optimize() starts (the atoms which are not in the set are false): the search
+     * prefers the truth values from the state and, if the state satisfies the hard clauses, its penalty is used
+     * as the initial upper bound.
+     * @param initialState set of positive literals, null means no initial state
+     */
+    public void setInitialState(Set<Literal> initialState) {
+        this.initialState = initialState;
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.collections.ValueToIndex;
+import ida.utils.tuples.Pair;
+import org.sat4j.core.Vec;
+import org.sat4j.core.VecInt;
+import org.sat4j.pb.IPBSolver;
+import org.sat4j.pb.SolverFactory;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.IConstr;
+import org.sat4j.specs.TimeoutException;
+import supertweety.misc.WeightSum;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Weighted MaxSAT solver session which can be extended by new ground clauses between the calls of optimize().
+ * Unlike GroundProgramSolver, the mapping of literals to variables, the already encoded clauses and the
+ * SAT4J solver (together with its learnt clauses) are kept between the calls, so only the newly added clauses
+ * need to be encoded. Every call of optimize() starts from the previous optimal model. It is meant to be used in
+ * cutting-plane algorithms in which the set of active ground clauses only grows.
+ *
+ * Soft clauses are relaxed by fresh variables and the optimization is a linear search over upper bounds on
+ * the penalty; every bound is a pseudo-boolean constraint guarded by an activation literal, it is removed from
+ * the solver right after it has been used (the learnt clauses derived from it contain the negated activation
+ * literal, which is then fixed to false), so the size of the solver does not grow with the number of bounds.
+ */
+public class IncrementalGroundProgramSolver {
+
+    private IPBSolver solver = SolverFactory.newDefault();
+
+    private ValueToIndex<Literal> literalsToIndices = new ValueToIndex<Literal>(1);
+
+    private List<int[]> softDimacsClauses = new ArrayList<int[]>();
+
+    private List<BigInteger> softWeights = new ArrayList<BigInteger>();
+
+    private List<Integer> relaxationVariables = new ArrayList<Integer>();
+
+    private BigInteger sumOfWeights = BigInteger.ZERO;
+
+    private boolean contradiction = false;
+
+    private int[] lastModel;
+
+    private int optimizationTimeout = Integer.MAX_VALUE;
+
+    private boolean timedOut;
+
+    public IncrementalGroundProgramSolver(){}
+
+    public IncrementalGroundProgramSolver(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> softProgram){
+        this.addHardClauses(hardProgram);
+        this.addSoftClauses(softProgram);
+    }
+
+    public void addHardClauses(Collection<Clause> hardProgram){
+        for (Clause c : hardProgram){
+            this.addHardClause(c);
+        }
+    }
+
+    public void addSoftClauses(Collection<Pair<Clause,BigInteger>> softProgram){
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s == null){
+                this.addHardClause(c.r);
+            } else {
+                this.addSoftClause(c.r, c.s);
+            }
+        }
+    }
+
+    public void addHardClause(Clause c){
+        addDimacsClause(toDimacsClause(c));
+    }
+
+    public void addSoftClause(Clause c, BigInteger weight){
+        int signum = weight.signum();
+        if (signum == 0){
+            return;
+        }
+        int[] clause = toDimacsClause(c);
+        int relaxation = solver.nextFreeVarId(true);
+        if (signum > 0){
+            //clause or relaxation
+            int[] relaxed = Arrays.copyOf(clause, clause.length+1);
+            relaxed[clause.length] = relaxation;
+            addDimacsClause(relaxed);
+        } else {
+            //negative weight is paid when the clause is satisfied, i.e. clause implies relaxation
+            for (int literal : clause){
+                addDimacsClause(new int[]{-literal, relaxation});
+            }
+        }
+        this.softDimacsClauses.add(clause);
+        this.softWeights.add(weight);
+        this.relaxationVariables.add(relaxation);
+        this.sumOfWeights = this.sumOfWeights.add(weight.abs());
+    }
+
+    /**
+     * Computes an optimal model of all the clauses added so far.
+     * @return the set of positive literals true in the optimal model, or null if the hard clauses are not satisfiable
+     * or if no model was found within the time limit (if a non-optimal model was found, it is returned)
+     */
+    public Set<Literal> optimize(){
+        int[] model = optimizeModel();
+        if (model == null){
+            return null;
+        }
+        Set<Literal> solution = new HashSet<Literal>();
+        for (int i : model){
+            Literal l;
+            if (i > 0 && (l = literalsToIndices.indexToValue(i)) != null){
+                solution.add(l);
+            }
+        }
+        return solution;
+    }
+
+    private int[] optimizeModel(){
+        if (this.contradiction){
+            return null;
+        }
+        this.timedOut = false;
+        long deadline = optimizationTimeout == Integer.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+optimizationTimeout;
+        int[] best = null;
+        WeightSum bestPenalty = null;
+        try {
+            if (this.lastModel != null) {
+                //warm start: if the previous optimal model still satisfies the hard clauses, it is the initial upper bound
+                VecInt assumptions = new VecInt();
+                for (int i : this.lastModel) {
+                    if (literalsToIndices.indexToValue(Math.abs(i)) != null) {
+                        assumptions.push(i);
+                    }
+                }
+                if (solve(assumptions, deadline)) {
+                    best = solver.model();
+                    bestPenalty = penalty(best);
+                }
+            }
+            if (best == null) {
+                if (!solve(new VecInt(), deadline)) {
+                    return null;
+                }
+                best = solver.model();
+                bestPenalty = penalty(best);
+            }
+            while (bestPenalty.signum() > 0) {
+                int activation = solver.nextFreeVarId(true);
+                IConstr bound = addUpperBound(bestPenalty.toBigInteger().subtract(BigInteger.ONE), activation);
+                boolean improved;
+                try {
+                    improved = solve(new VecInt(new int[]{activation}), deadline);
+                } finally {
+                    retire(bound, activation);
+                }
+                if (!improved) {
+                    break;
+                }
+                best = solver.model();
+                bestPenalty = penalty(best);
+            }
+        } catch (TimeoutException te){
+            //the best model found so far is returned
+            this.timedOut = true;
+        } catch (ContradictionException ce){
+            this.contradiction = true;
+            return null;
+        }
+        if (best != null){
+            this.lastModel = best;
+        }
+        return best;
+    }
+
+    private boolean solve(VecInt assumptions, long deadline) throws TimeoutException {
+        if (deadline == Long.MAX_VALUE){
+            solver.setTimeoutMs(Integer.MAX_VALUE);
+        } else {
+            long remaining = deadline-System.currentTimeMillis();
+            if (remaining <= 0){
+                throw new TimeoutException();
+            }
+            solver.setTimeoutMs(remaining);
+        }
+        return solver.isSatisfiable(assumptions);
+    }
+
+    private IConstr addUpperBound(BigInteger bound, int activation) throws ContradictionException {
+        VecInt lits = new VecInt();
+        Vec<BigInteger> coeffs = new Vec<BigInteger>();
+        for (int i = 0; i < relaxationVariables.size(); i++){
+            lits.push(relaxationVariables.get(i));
+            coeffs.push(softWeights.get(i).abs());
+        }
+        //the constraint is trivially satisfied when the activation literal is false
+        lits.push(activation);
+        coeffs.push(sumOfWeights);
+        return solver.addPseudoBoolean(lits, coeffs, false, bound.add(sumOfWeights));
+    }
+
+    private void retire(IConstr bound, int activation) throws ContradictionException {
+        if (bound != null){
+            solver.removeConstr(bound);
+        }
+        solver.addClause(new VecInt(new int[]{-activation}));
+    }
+
+    private WeightSum penalty(int[] model){
+        boolean[] values = new boolean[model.length+1];
+        for (int i : model){
+            if (i > 0 && i < values.length){
+                values[i] = true;
+            }
+        }
+        WeightSum penalty = new WeightSum();
+        for (int i = 0; i < softDimacsClauses.size(); i++){
+            boolean satisfied = false;
+            for (int literal : softDimacsClauses.get(i)){
+                if ((literal > 0) == values[Math.abs(literal)]){
+                    satisfied = true;
+                    break;
+                }
+            }
+            BigInteger weight = softWeights.get(i);
+            if ((weight.signum() > 0 && !satisfied) || (weight.signum() < 0 && satisfied)){
+                penalty.add(weight.abs());
+            }
+        }
+        return penalty;
+    }
+
+    private void addDimacsClause(int[] clause){
+        if (this.contradiction){
+            return;
+        }
+        try {
+            solver.addClause(new VecInt(clause));
+        } catch (ContradictionException ce){
+            this.contradiction = true;
+        }
+    }
+
+    private int[] toDimacsClause(Clause c){
+        int[] clause = new int[c.literals().size()];
+        int i = 0;
+        for (Literal l : c.literals()){
+            if (l.isNegated()){
+                clause[i] = -variable(l.negation());
+            } else {
+                clause[i] = variable(l);
+            }
+            i++;
+        }
+        return clause;
+    }
+
+    private int variable(Literal positiveLiteral){
+        Integer index = literalsToIndices.valuesToIndicesMap().get(positiveLiteral);
+        if (index == null){
+            index = solver.nextFreeVarId(true);
+            literalsToIndices.put(index, positiveLiteral);
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the last call of optimize() hit the time limit (the returned model need not be optimal)
+     */
+    public boolean timedOut(){
+        return this.timedOut;
+    }
+
+    public void setOptimizationTimeout(int optimizationTimeout) {
+        this.optimizationTimeout = optimizationTimeout;
+    }
+}
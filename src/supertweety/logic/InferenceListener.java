@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+/**
+ * Listener which is notified after every iteration of the cutting-plane loops in MarkovLogic.runMAPInference
+ * and ProgramSolver.solve.
+ */
+public interface InferenceListener {
+
+    /**
+     * Called after every iteration (including the last one, in which no new violated groundings were found and
+     * the solver was not called).
+     * @param iteration index of the iteration, starting from 0 in every run of the inference
+     * @param violatedGroundings number of violated groundings found in the iteration
+     * @param activeClauses number of ground clauses sent to the solver
+     * @param matchingNanos time spent searching for the violated groundings
+     * @param solvingNanos time spent in the solver
+     * @param timedOut true if the solver hit its time limit
+     */
+    void iterationFinished(int iteration, int violatedGroundings, int activeClauses, long matchingNanos, long solvingNanos, boolean timedOut);
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.utils.collections.Counters;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * InferenceListener which aggregates the reported numbers: totals and histograms of the numbers of violated
+ * groundings, active clauses and of the matching and solving times (in milliseconds) per iteration. The histogram
+ * buckets are powers of two, a value v is counted in the bucket 2^k with 2^(k-1) < v <= 2^k (0 has its own bucket).
+ * It can be shared by several MarkovLogic objects, also from different threads, the histograms are therefore returned
+ * as copies (maps from the buckets to the numbers of iterations, sorted by the buckets).
+ */
+public class InferenceStatistics implements InferenceListener {
+
+    private int runs, iterations, timeouts;
+
+    private long violatedGroundings, matchingNanos, solvingNanos;
+
+    private int maxActiveClauses;
+
+    private Counters<Long> violatedGroundingsHistogram = new Counters<Long>();
+
+    private Counters<Long> activeClausesHistogram = new Counters<Long>();
+
+    private Counters<Long> matchingMillisHistogram = new Counters<Long>();
+
+    private Counters<Long> solvingMillisHistogram = new Counters<Long>();
+
+    @Override
+    public synchronized void iterationFinished(int iteration, int violatedGroundings, int activeClauses, long matchingNanos, long solvingNanos, boolean timedOut) {
+        if (iteration == 0){
+            this.runs++;
+        }
+        this.iterations++;
+        if (timedOut){
+            this.timeouts++;
+        }
+        this.violatedGroundings += violatedGroundings;
+        this.matchingNanos += matchingNanos;
+        this.solvingNanos += solvingNanos;
+        this.maxActiveClauses = Math.max(this.maxActiveClauses, activeClauses);
+        this.violatedGroundingsHistogram.increment(bucket(violatedGroundings));
+        this.activeClausesHistogram.increment(bucket(activeClauses));
+        this.matchingMillisHistogram.increment(bucket(matchingNanos/1000000));
+        this.solvingMillisHistogram.increment(bucket(solvingNanos/1000000));
+    }
+
+    private static long bucket(long value){
+        if (value <= 0){
+            return 0;
+        }
+        return Long.highestOneBit(value) == value ? value : Long.highestOneBit(value) << 1;
+    }
+
+    public synchronized void reset(){
+        this.runs = 0;
+        this.iterations = 0;
+        this.timeouts = 0;
+        this.violatedGroundings = 0;
+        this.matchingNanos = 0;
+        this.solvingNanos = 0;
+        this.maxActiveClauses = 0;
+        this.violatedGroundingsHistogram = new Counters<Long>();
+        this.activeClausesHistogram = new Counters<Long>();
+        this.matchingMillisHistogram = new Counters<Long>();
+        this.solvingMillisHistogram = new Counters<Long>();
+    }
+
+    public synchronized int runs(){
+        return this.runs;
+    }
+
+    public synchronized int iterations(){
+        return this.iterations;
+    }
+
+    public synchronized int timeouts(){
+        return this.timeouts;
+    }
+
+    public synchronized long violatedGroundings(){
+        return this.violatedGroundings;
+    }
+
+    public synchronized int maxActiveClauses(){
+        return this.maxActiveClauses;
+    }
+
+    public synchronized long matchingMillis(){
+        return this.matchingNanos/1000000;
+    }
+
+    public synchronized long solvingMillis(){
+        return this.solvingNanos/1000000;
+    }
+
+    public synchronized Map<Long,Integer> violatedGroundingsHistogram(){
+        return new TreeMap<Long,Integer>(this.violatedGroundingsHistogram.toMap());
+    }
+
+    public synchronized Map<Long,Integer> activeClausesHistogram(){
+        return new TreeMap<Long,Integer>(this.activeClausesHistogram.toMap());
+    }
+
+    public synchronized Map<Long,Integer> matchingMillisHistogram(){
+        return new TreeMap<Long,Integer>(this.matchingMillisHistogram.toMap());
+    }
+
+    public synchronized Map<Long,Integer> solvingMillisHistogram(){
+        return new TreeMap<Long,Integer>(this.solvingMillisHistogram.toMap());
+    }
+
+    @Override
+    public synchronized String toString(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("runs: ").append(runs).append(", iterations: ").append(iterations).append(", timeouts: ").append(timeouts).append("\n");
+        sb.append("violated groundings: ").append(violatedGroundings).append(", max active clauses: ").append(maxActiveClauses).append("\n");
+        sb.append("matching: ").append(matchingMillis()).append(" ms, solving: ").append(solvingMillis()).append(" ms\n");
+        sb.append("violated groundings per iteration: ").append(new TreeMap<Long,Integer>(violatedGroundingsHistogram.toMap())).append("\n");
+        sb.append("active clauses per iteration: ").append(new TreeMap<Long,Integer>(activeClausesHistogram.toMap())).append("\n");
+        sb.append("matching ms per iteration: ").append(new TreeMap<Long,Integer>(matchingMillisHistogram.toMap())).append("\n");
+        sb.append("solving ms per iteration: ").append(new TreeMap<Long,Integer>(solvingMillisHistogram.toMap()));
+        return sb.toString();
+    }
+}
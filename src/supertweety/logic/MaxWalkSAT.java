@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.collections.ValueToIndex;
+import ida.utils.tuples.Pair;
+import supertweety.misc.WeightSum;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * MaxWalkSAT local search for weighted MaxSAT over ground clauses (the same input as GroundProgramSolver).
+ * A clause with positive weight is penalized when it is violated, a clause with negative weight is penalized
+ * (by the absolute value of its weight) when it is satisfied. Hard clauses get a weight larger than the sum
+ * of all soft weights.
+ *
+ * In every step, a random penalized clause is selected (violated hard clauses first) and one of its atoms is flipped - with probability noise
+ * a random one, otherwise the one whose flip decreases the penalty the most among the atoms which were not
+ * flipped during the last tabuLength steps. The search is restarted maxTries times, each try has at most maxFlips
+ * steps. It is an anytime algorithm - the best state found so far is returned when the time limit is reached.
+ * Weights are handled in long arithmetic, if they are too large for that, they are scaled down for the search.
+ */
+public class MaxWalkSAT {
+
+    private ValueToIndex<Literal> atomsToIndices = new ValueToIndex<Literal>(1);
+
+    private List<int[]> clauses = new ArrayList<int[]>();
+
+    //null for hard clauses
+    private List<BigInteger> weights = new ArrayList<BigInteger>();
+
+    private Set<Literal> initialState;
+
+    private double noise = 0.2;
+
+    private int tabuLength = 5;
+
+    private int maxFlips = 100000;
+
+    private int maxTries = 10;
+
+    private int timeout = Integer.MAX_VALUE;
+
+    private Random random = new Random(2015);
+
+    private BigInteger bestPenalty;
+
+    private boolean timedOut;
+
+    private volatile boolean stopped;
+
+    private boolean optimal;
+
+    //search data
+    private int[][] searchClauses;
+
+    private long[] searchWeights;
+
+    private boolean[] negativeWeight;
+
+    private int[][] occurrences;
+
+    private boolean[] assignment;
+
+    private int[] numTrueLiterals;
+
+    private boolean[] hard;
+
+    //penalized hard clauses are kept separately from penalized soft clauses, so that they can be repaired first
+    private int[] penalizedHard, penalizedSoft;
+
+    private int[] positionInPenalized;
+
+    private int numPenalizedHard, numPenalizedSoft;
+
+    private long cost;
+
+    private long hardWeight;
+
+    public MaxWalkSAT(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> softProgram){
+        for (Clause c : hardProgram){
+            this.addClause(c, null);
+        }
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s == null || c.s.signum() != 0) {
+                this.addClause(c.r, c.s);
+            }
+        }
+    }
+
+    private void addClause(Clause c, BigInteger weight){
+        int[] clause = new int[c.countLiterals()];
+        int i = 0;
+        for (Literal l : c.literals()){
+            if (l.isNegated()){
+                clause[i] = -atomsToIndices.valueToIndex(l.negation());
+            } else {
+                clause[i] = atomsToIndices.valueToIndex(l);
+            }
+            i++;
+        }
+        this.clauses.add(clause);
+        this.weights.add(weight);
+    }
+
+    /**
+     * Runs the local search.
+     * @return the set of positive literals true in the best state found, or null if no state satisfying the hard
+     * clauses has been found
+     */
+    public Set<Literal> optimize(){
+        boolean[] best = search();
+        this.bestPenalty = null;
+        if (best == null){
+            return null;
+        }
+        WeightSum penalty = new WeightSum();
+        for (int i = 0; i < clauses.size(); i++){
+            boolean satisfied = isSatisfied(clauses.get(i), best);
+            BigInteger weight = weights.get(i);
+            if (weight == null){
+                if (!satisfied){
+                    return null;
+                }
+            } else if (weight.signum() > 0 ? !satisfied : satisfied){
+                penalty.add(weight.abs());
+            }
+        }
+        this.bestPenalty = penalty.toBigInteger();
+        Set<Literal> solution = new HashSet<Literal>();
+        for (int i = 1; i < best.length; i++){
+            if (best[i]){
+                solution.add(atomsToIndices.indexToValue(i));
+            }
+        }
+        return solution;
+    }
+
+    /**
+     * @return the penalty of the state returned by the last call of optimize(), or null if it returned null
+     */
+    public BigInteger bestPenalty(){
+        return this.bestPenalty;
+    }
+
+    private boolean[] search(){
+        long deadline = timeout == Integer.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+timeout;
+        initSearch();
+        this.timedOut = false;
+        this.optimal = false;
+        boolean[] best = null;
+        long bestCost = Long.MAX_VALUE;
+        int[] lastFlip = new int[assignment.length];
+        int step = 0;
+        for (int t = 0; t < maxTries; t++){
+            if (t == 0 && initialState != null){
+                for (int i = 1; i < assignment.length; i++){
+                    assignment[i] = initialState.contains(atomsToIndices.indexToValue(i));
+                }
+            } else {
+                for (int i = 1; i < assignment.length; i++){
+                    assignment[i] = random.nextBoolean();
+                }
+            }
+            Arrays.fill(lastFlip, Integer.MIN_VALUE/2);
+            recomputeCost();
+            for (int flip = 0; ; flip++){
+                if (cost < bestCost){
+                    bestCost = cost;
+                    best = assignment.clone();
+                }
+                if (numPenalizedHard+numPenalizedSoft == 0 || flip >= maxFlips){
+                    break;
+                }
+                if ((flip & 255) == 0 && (this.stopped || System.currentTimeMillis() > deadline)){
+                    this.timedOut = true;
+                    break;
+                }
+                int clause = numPenalizedHard > 0 ? penalizedHard[random.nextInt(numPenalizedHard)] : penalizedSoft[random.nextInt(numPenalizedSoft)];
+                int variable = selectVariable(clause, lastFlip, step, bestCost);
+                flip(variable);
+                lastFlip[variable] = step++;
+            }
+            //only empty clauses can be penalized in the best state
+            if (bestCost == emptyClausesCost()){
+                this.optimal = true;
+                break;
+            }
+            if (this.timedOut){
+                break;
+            }
+        }
+        if (best == null || bestCost >= hardWeight){
+            //the best state violates some hard clause
+            return null;
+        }
+        return best;
+    }
+
+    private int selectVariable(int clause, int[] lastFlip, int step, long bestCost){
+        int[] literals = searchClauses[clause];
+        int numCandidates = 0;
+        int[] candidates = new int[literals.length];
+        for (int literal : literals){
+            //to repair a clause with negative weight, its true literals must be made false
+            if (!negativeWeight[clause] || assignment[Math.abs(literal)] == literal > 0){
+                candidates[numCandidates++] = Math.abs(literal);
+            }
+        }
+        if (random.nextDouble() < noise){
+            return candidates[random.nextInt(numCandidates)];
+        }
+        int bestVariable = -1;
+        long bestDelta = Long.MAX_VALUE;
+        for (int i = 0; i < numCandidates; i++){
+            int variable = candidates[i];
+            long delta = delta(variable);
+            boolean tabu = step - lastFlip[variable] <= tabuLength;
+            //tabu moves are allowed when they lead to a new best state
+            if ((!tabu || cost + delta < bestCost) && delta < bestDelta){
+                bestDelta = delta;
+                bestVariable = variable;
+            }
+        }
+        if (bestVariable == -1){
+            return candidates[random.nextInt(numCandidates)];
+        }
+        return bestVariable;
+    }
+
+    private void initSearch(){
+        int n = atomsToIndices.size();
+        this.searchClauses = new int[clauses.size()][];
+        this.searchWeights = new long[clauses.size()];
+        this.negativeWeight = new boolean[clauses.size()];
+        this.hard = new boolean[clauses.size()];
+        WeightSum sum = new WeightSum();
+        int numHard = 0;
+        for (BigInteger weight : weights){
+            if (weight != null){
+                sum.add(weight.abs());
+            } else {
+                numHard++;
+            }
+        }
+        //the soft weights are scaled down so that the penalty stays in long even if all hard clauses are violated
+        int maxSoftBits = 61-BigInteger.valueOf(numHard+1).bitLength();
+        int shift = Math.max(0, sum.toBigInteger().bitLength()-maxSoftBits);
+        long softSum = 0;
+        List<List<Integer>> occurrenceLists = new ArrayList<List<Integer>>(n+1);
+        for (int i = 0; i <= n; i++){
+            occurrenceLists.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < clauses.size(); i++){
+            searchClauses[i] = clauses.get(i);
+            BigInteger weight = weights.get(i);
+            if (weight != null){
+                negativeWeight[i] = weight.signum() < 0;
+                searchWeights[i] = Math.max(1, weight.abs().shiftRight(shift).longValue());
+                softSum += searchWeights[i];
+            }
+            for (int literal : searchClauses[i]){
+                occurrenceLists.get(Math.abs(literal)).add(literal > 0 ? i : -i-1);
+            }
+        }
+        this.hardWeight = softSum+1;
+        for (int i = 0; i < clauses.size(); i++){
+            if (weights.get(i) == null){
+                hard[i] = true;
+                searchWeights[i] = hardWeight;
+            }
+        }
+        this.occurrences = new int[n+1][];
+        for (int i = 0; i <= n; i++){
+            occurrences[i] = new int[occurrenceLists.get(i).size()];
+            for (int j = 0; j < occurrences[i].length; j++){
+                occurrences[i][j] = occurrenceLists.get(i).get(j);
+            }
+        }
+        this.assignment = new boolean[n+1];
+        this.numTrueLiterals = new int[clauses.size()];
+        this.penalizedHard = new int[clauses.size()];
+        this.penalizedSoft = new int[clauses.size()];
+        this.positionInPenalized = new int[clauses.size()];
+    }
+
+    private long emptyClausesCost(){
+        long emptyClausesCost = 0;
+        for (int i = 0; i < searchClauses.length; i++){
+            if (searchClauses[i].length == 0 && !negativeWeight[i]){
+                emptyClausesCost += searchWeights[i];
+            }
+        }
+        return emptyClausesCost;
+    }
+
+    private void recomputeCost(){
+        this.cost = 0;
+        this.numPenalizedHard = 0;
+        this.numPenalizedSoft = 0;
+        for (int i = 0; i < searchClauses.length; i++){
+            int numTrue = 0;
+            for (int literal : searchClauses[i]){
+                if (assignment[Math.abs(literal)] == literal > 0){
+                    numTrue++;
+                }
+            }
+            numTrueLiterals[i] = numTrue;
+            positionInPenalized[i] = -1;
+            if (searchClauses[i].length == 0){
+                //empty clauses cannot be repaired, so they are not selected by the search
+                if (!negativeWeight[i]){
+                    cost += searchWeights[i];
+                }
+            } else if (isPenalized(i, numTrue)){
+                addPenalized(i);
+            }
+        }
+    }
+
+    private boolean isPenalized(int clause, int numTrue){
+        return negativeWeight[clause] ? numTrue > 0 : numTrue == 0;
+    }
+
+    private long delta(int variable){
+        long delta = 0;
+        for (int occurrence : occurrences[variable]){
+            int clause = occurrence >= 0 ? occurrence : -occurrence-1;
+            boolean literalTrue = assignment[variable] == occurrence >= 0;
+            int numTrue = numTrueLiterals[clause];
+            boolean before = isPenalized(clause, numTrue);
+            boolean after = isPenalized(clause, literalTrue ? numTrue-1 : numTrue+1);
+            if (before != after){
+                delta += after ? searchWeights[clause] : -searchWeights[clause];
+            }
+        }
+        return delta;
+    }
+
+    private void flip(int variable){
+        for (int occurrence : occurrences[variable]){
+            int clause = occurrence >= 0 ? occurrence : -occurrence-1;
+            boolean literalTrue = assignment[variable] == occurrence >= 0;
+            boolean before = isPenalized(clause, numTrueLiterals[clause]);
+            numTrueLiterals[clause] += literalTrue ? -1 : 1;
+            boolean after = isPenalized(clause, numTrueLiterals[clause]);
+            if (before && !after){
+                removePenalized(clause);
+            } else if (!before && after){
+                addPenalized(clause);
+            }
+        }
+        assignment[variable] = !assignment[variable];
+    }
+
+    private void addPenalized(int clause){
+        if (hard[clause]){
+            positionInPenalized[clause] = numPenalizedHard;
+            penalizedHard[numPenalizedHard++] = clause;
+        } else {
+            positionInPenalized[clause] = numPenalizedSoft;
+            penalizedSoft[numPenalizedSoft++] = clause;
+        }
+        cost += searchWeights[clause];
+    }
+
+    private void removePenalized(int clause){
+        int position = positionInPenalized[clause];
+        int last;
+        if (hard[clause]){
+            last = penalizedHard[--numPenalizedHard];
+            penalizedHard[position] = last;
+        } else {
+            last = penalizedSoft[--numPenalizedSoft];
+            penalizedSoft[position] = last;
+        }
+        positionInPenalized[last] = position;
+        positionInPenalized[clause] = -1;
+        cost -= searchWeights[clause];
+    }
+
+    private static boolean isSatisfied(int[] clause, boolean[] assignment){
+        for (int literal : clause){
+            if (assignment[Math.abs(literal)] == literal > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the state from which the first try starts (the atoms which are not in the set are false).
+     * @param initialState set of positive literals
+     */
+    public void setInitialState(Set<Literal> initialState) {
+        this.initialState = initialState;
+    }
+
+    /**
+     * @return true if the last call of optimize() was stopped by the time limit
+     */
+    public boolean timedOut(){
+        return this.timedOut;
+    }
+
+    /**
+     * @return true if the state found by the last call of optimize() is optimal because only the empty clauses are
+     * penalized in it
+     */
+    public boolean foundOptimum(){
+        return this.optimal && this.bestPenalty != null;
+    }
+
+    /**
+     * Stops the search (it can be called from another thread), optimize() then returns the best state found so far
+     * and timedOut() returns true. The search cannot be resumed.
+     */
+    public void stop(){
+        this.stopped = true;
+    }
+
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    public void setTabuLength(int tabuLength) {
+        this.tabuLength = tabuLength;
+    }
+
+    public void setMaxFlips(int maxFlips) {
+        this.maxFlips = maxFlips;
+    }
+
+    public void setMaxTries(int maxTries) {
+        this.maxTries = maxTries;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setRandomSeed(long seed) {
+        this.random = new Random(seed);
+    }
+}
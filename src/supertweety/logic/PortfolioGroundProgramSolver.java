@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.logic;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.Parallel;
+import ida.utils.tuples.Pair;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Races GroundProgramSolver (exact) against MaxWalkSAT (local search) on the same ground program. Both solvers run
+ * as tasks of a thread pool (set by setParallel, or a pool with two threads per processor shared by all instances,
+ * so that several ground programs can be solved at once, e.g. in runBatchMAPInference), so no threads are created
+ * for the individual ground programs; the calling thread waits for both tasks. The race ends when the exact solver
+ * proves optimality, when the local search finds a state in which only the empty clauses are penalized (then the
+ * exact solver is stopped) or when the time limit is reached. The state returned is the one from the solver which
+ * won: the exact solver if it proved optimality, otherwise the better of the two states found.
+ */
+public class PortfolioGroundProgramSolver {
+
+    public final static int NONE = 0, EXACT = 1, LOCAL_SEARCH = 2;
+
+    private final GroundProgramSolver exactSolver;
+
+    private final MaxWalkSAT localSearch;
+
+    private List<Pair<Clause,BigInteger>> softProgram = new ArrayList<Pair<Clause,BigInteger>>();
+
+    private int winner = NONE;
+
+    private boolean timedOut;
+
+    private Parallel parallel;
+
+    private static Parallel sharedParallel;
+
+    public PortfolioGroundProgramSolver(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> softProgram){
+        //both solvers are built from the same lists of ground clauses
+        for (Pair<Clause,BigInteger> c : softProgram){
+            if (c.s != null){
+                this.softProgram.add(c);
+            }
+        }
+        this.exactSolver = new GroundProgramSolver(hardProgram, softProgram);
+        this.localSearch = new MaxWalkSAT(hardProgram, softProgram);
+    }
+
+    /**
+     * Runs both solvers until the race ends. If one of them throws an exception, the other one is stopped and the
+     * exception is rethrown.
+     * @return the set of positive literals true in the state returned by the winning solver, or null if no state
+     * satisfying the hard clauses has been found
+     */
+    public Set<Literal> optimize(){
+        final Map<Integer,Set<Literal>> solutions = Collections.synchronizedMap(new HashMap<Integer,Set<Literal>>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Runnable exactTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    solutions.put(EXACT, exactSolver.optimize());
+                } catch (Throwable t){
+                    failures.add(t);
+                } finally {
+                    localSearch.stop();
+                }
+            }
+        };
+        Runnable localSearchTask = new Runnable() {
+            @Override
+            public void run() {
+                boolean stopExactSolver = true;
+                try {
+                    //if the exact solver has already finished, the local search stops right after it starts
+                    solutions.put(LOCAL_SEARCH, localSearch.optimize());
+                    stopExactSolver = localSearch.foundOptimum();
+                } catch (Throwable t){
+                    failures.add(t);
+                } finally {
+                    if (stopExactSolver){
+                        exactSolver.stop();
+                    }
+                }
+            }
+        };
+        //the pool takes the last task first, so the exact solver, which stops the local search, starts first
+        (this.parallel == null ? sharedParallel() : this.parallel).runTasks(localSearchTask, exactTask);
+        if (!failures.isEmpty()){
+            Throwable failure = failures.get(0);
+            if (failure instanceof RuntimeException){
+                throw (RuntimeException)failure;
+            } else if (failure instanceof Error){
+                throw (Error)failure;
+            }
+            throw new RuntimeException(failure);
+        }
+        Set<Literal> exactSolution = solutions.get(EXACT);
+        Set<Literal> localSearchSolution = solutions.get(LOCAL_SEARCH);
+        if (exactSolution != null && !this.exactSolver.timedOut()){
+            this.winner = EXACT;
+            this.timedOut = false;
+            return exactSolution;
+        }
+        if (localSearchSolution != null && (exactSolution == null ||
+                this.localSearch.bestPenalty().compareTo(penalty(this.softProgram, exactSolution)) <= 0)){
+            this.winner = LOCAL_SEARCH;
+            this.timedOut = !this.localSearch.foundOptimum();
+            return localSearchSolution;
+        }
+        //the exact solver found a better state but did not prove its optimality (or it proved that there is no state)
+        this.winner = exactSolution == null ? NONE : EXACT;
+        this.timedOut = this.exactSolver.timedOut();
+        return exactSolution;
+    }
+
+    private static BigInteger penalty(List<Pair<Clause,BigInteger>> softProgram, Set<Literal> solution){
+        BigInteger penalty = BigInteger.ZERO;
+        for (Pair<Clause,BigInteger> c : softProgram){
+            boolean satisfied = false;
+            for (Literal l : c.r.literals()){
+                if (l.isNegated() ? !solution.contains(l.negation()) : solution.contains(l)){
+                    satisfied = true;
+                    break;
+                }
+            }
+            if (c.s.signum() > 0 ? !satisfied : satisfied){
+                penalty = penalty.add(c.s.abs());
+            }
+        }
+        return penalty;
+    }
+
+    private static synchronized Parallel sharedParallel(){
+        if (sharedParallel == null){
+            sharedParallel = new Parallel(2*Runtime.getRuntime().availableProcessors());
+        }
+        return sharedParallel;
+    }
+
+    /**
+     * Sets the thread pool in which the two solvers run, it should have at least two threads so that they really race.
+     * @param parallel thread pool, null means the pool shared by all instances
+     */
+    public void setParallel(Parallel parallel){
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return EXACT or LOCAL_SEARCH - the solver whose state was returned by the last call of optimize(),
+     * or NONE if it returned null
+     */
+    public int winner(){
+        return this.winner;
+    }
+
+    /**
+     * @return true if the state returned by the last call of optimize() is not guaranteed to be optimal (or if it
+     * returned null because of the time limit)
+     */
+    public boolean timedOut(){
+        return this.timedOut;
+    }
+
+    /**
+     * Sets the time limit of both solvers.
+     * @param timeout time limit in milliseconds
+     */
+    public void setOptimizationTimeout(int timeout){
+        this.exactSolver.setOptimizationTimeout(timeout);
+        this.localSearch.setTimeout(timeout);
+    }
+
+    /**
+     * @return the local search solver, so that its parameters (and the initial state) can be set
+     */
+    public MaxWalkSAT localSearch(){
+        return this.localSearch;
+    }
+
+    /**
+     * @return the exact solver, so that its initial state (and stratification) can be set
+     */
+    public GroundProgramSolver exactSolver(){
+        return this.exactSolver;
+    }
+}
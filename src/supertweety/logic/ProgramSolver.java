@@ -30,6 +30,8 @@ public class ProgramSolver {
 
     private Set<Pair<String,Integer>> deterministicPredicates = new HashSet<Pair<String,Integer>>();
 
+    private List<InferenceListener> inferenceListeners = new ArrayList<InferenceListener>();
+
     public Set<Literal> solve(Collection<Clause> rules){
         return this.solve(rules, Sugar.<Literal>set());
     }
@@ -78,14 +80,21 @@ public class ProgramSolver {
                 }
             }
         });
-        while (true){
+        for (int iteration = 0; ; iteration++){
+            long solvingStart = System.nanoTime();
             GroundProgramSolver gps = new GroundProgramSolver(activeRules);
-            if ((state = gps.solve()) == null){
+            state = gps.solve();
+            long solvingNanos = System.nanoTime()-solvingStart;
+            if (state == null){
+                fireIterationFinished(iteration, 0, activeRules.size(), 0, solvingNanos);
                 return null;
             }
             state.addAll(deterministic);
             int activeRulesBefore = activeRules.size();
-            activeRules.addAll(findViolatedRules(rules, state));
+            long matchingStart = System.nanoTime();
+            List<Clause> violatedRules = findViolatedRules(rules, state);
+            fireIterationFinished(iteration, violatedRules.size(), activeRulesBefore, System.nanoTime()-matchingStart, solvingNanos);
+            activeRules.addAll(violatedRules);
             activeRules = Sugar.<Clause,Clause>funcallAndRemoveNulls(activeRules, new Sugar.Fun<Clause,Clause>(){
                 @Override
                 public Clause apply(Clause clause) {
@@ -104,6 +113,24 @@ public class ProgramSolver {
         return state;
     }
 
+    private void fireIterationFinished(int iteration, int violatedGroundings, int activeClauses, long matchingNanos, long solvingNanos){
+        for (InferenceListener listener : this.inferenceListeners){
+            listener.iterationFinished(iteration, violatedGroundings, activeClauses, matchingNanos, solvingNanos, false);
+        }
+    }
+
+    /**
+     * Adds a listener which is notified after every iteration of solve(..) (the time limit is never hit here).
+     * @param listener
+     */
+    public void addInferenceListener(InferenceListener listener){
+        this.inferenceListeners.add(listener);
+    }
+
+    public void removeInferenceListener(InferenceListener listener){
+        this.inferenceListeners.remove(listener);
+    }
+
     public List<Clause> findViolatedRules(Collection<Clause> rules, Set<Literal> currentState){
         List<Clause> violated = new ArrayList<Clause>();
         Matching matching = new Matching(Sugar.list(new Clause(currentState)));
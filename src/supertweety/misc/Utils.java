@@ -48,15 +48,19 @@ public class Utils {
     public static Clause substitute(Clause c, Map<? extends Term,? extends Term> substitution){
         Set<Literal> literals = new HashSet<Literal>();
         for (Literal l : c.literals()){
-            Literal cl = ((Literal)l).copy();
-            for (int j = 0; j < l.arity(); j++){
-                if (substitution.containsKey(l.get(j))){
-                    cl.set(substitution.get(l.get(j)), j);
-                }
-            }
-            literals.add(cl);
+            literals.add(substitute(l, substitution));
         }
         return new Clause(literals);
     }
 
+    public static Literal substitute(Literal l, Map<? extends Term,? extends Term> substitution){
+        Literal cl = l.copy();
+        for (int j = 0; j < l.arity(); j++){
+            if (substitution.containsKey(l.get(j))){
+                cl.set(substitution.get(l.get(j)), j);
+            }
+        }
+        return cl;
+    }
+
 }
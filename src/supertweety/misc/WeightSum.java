@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.misc;
+
+import java.math.BigInteger;
+
+/**
+ * Mutable sum of integer weights (e.g. a penalty). As long as the sum fits into a long, it is computed using
+ * primitive arithmetic without allocating any objects; when an addition overflows, the sum switches to BigInteger.
+ * Hard (infinite) weights are represented by null, as in the rest of the code - adding null makes the sum infinite.
+ */
+public class WeightSum implements Comparable<WeightSum> {
+
+    private long longSum;
+
+    //null as long as the sum fits into long
+    private BigInteger bigSum;
+
+    private boolean infinite;
+
+    public WeightSum(){}
+
+    public WeightSum(BigInteger initialValue){
+        this.add(initialValue);
+    }
+
+    /**
+     * @param weight the weight to be added, null means infinite weight
+     */
+    public WeightSum add(BigInteger weight){
+        if (weight == null){
+            this.infinite = true;
+        } else if (this.bigSum == null && weight.bitLength() < 64){
+            this.add(weight.longValue());
+        } else {
+            this.bigSum = this.toBig().add(weight);
+        }
+        return this;
+    }
+
+    public WeightSum add(long weight){
+        if (this.bigSum == null){
+            long sum = this.longSum + weight;
+            //overflow iff both arguments have the same sign which differs from the sign of the result
+            if (((this.longSum ^ sum) & (weight ^ sum)) < 0){
+                this.bigSum = BigInteger.valueOf(this.longSum).add(BigInteger.valueOf(weight));
+            } else {
+                this.longSum = sum;
+            }
+        } else {
+            this.bigSum = this.bigSum.add(BigInteger.valueOf(weight));
+        }
+        return this;
+    }
+
+    /**
+     * Adds weight*times, the product is computed in long arithmetic unless it overflows.
+     */
+    public WeightSum add(long weight, long times){
+        if (((Math.abs(weight) | Math.abs(times)) >>> 31) == 0){
+            //both factors fit into 31 bits
+            return this.add(weight*times);
+        }
+        long product = weight*times;
+        if (weight != 0 && (product/weight != times || (weight == -1 && times == Long.MIN_VALUE))){
+            return this.add(BigInteger.valueOf(weight).multiply(BigInteger.valueOf(times)));
+        }
+        return this.add(product);
+    }
+
+    /**
+     * @param weight the weight to be subtracted, it must not be null
+     */
+    public WeightSum subtract(BigInteger weight){
+        if (this.bigSum == null && weight.bitLength() < 64 && weight.longValue() != Long.MIN_VALUE){
+            return this.add(-weight.longValue());
+        }
+        return this.add(weight.negate());
+    }
+
+    /**
+     * @param other the sum to be subtracted, it must not be infinite
+     */
+    public WeightSum subtract(WeightSum other){
+        if (other.bigSum == null && other.longSum != Long.MIN_VALUE){
+            return this.add(-other.longSum);
+        }
+        return this.add(other.toBig().negate());
+    }
+
+    public WeightSum add(WeightSum other){
+        if (other.infinite){
+            this.infinite = true;
+        } else if (other.bigSum == null){
+            this.add(other.longSum);
+        } else {
+            this.add(other.bigSum);
+        }
+        return this;
+    }
+
+    public void clear(){
+        this.longSum = 0;
+        this.bigSum = null;
+        this.infinite = false;
+    }
+
+    public boolean isInfinite(){
+        return this.infinite;
+    }
+
+    /**
+     * @return true if the (finite) sum fits into long
+     */
+    public boolean isLong(){
+        return this.bigSum == null;
+    }
+
+    public long longValue(){
+        return this.bigSum == null ? this.longSum : this.bigSum.longValue();
+    }
+
+    public int signum(){
+        if (this.infinite){
+            return 1;
+        }
+        return this.bigSum == null ? Long.signum(this.longSum) : this.bigSum.signum();
+    }
+
+    public double doubleValue(){
+        if (this.infinite){
+            return Double.POSITIVE_INFINITY;
+        }
+        return this.bigSum == null ? (double)this.longSum : this.bigSum.doubleValue();
+    }
+
+    /**
+     * @return the sum as BigInteger, or null if it is infinite
+     */
+    public BigInteger toBigInteger(){
+        return this.infinite ? null : this.toBig();
+    }
+
+    private BigInteger toBig(){
+        return this.bigSum == null ? BigInteger.valueOf(this.longSum) : this.bigSum;
+    }
+
+    @Override
+    public int compareTo(WeightSum o) {
+        if (this.infinite || o.infinite){
+            return (this.infinite ? 1 : 0) - (o.infinite ? 1 : 0);
+        }
+        if (this.bigSum == null && o.bigSum == null){
+            return this.longSum < o.longSum ? -1 : (this.longSum == o.longSum ? 0 : 1);
+        }
+        return this.toBig().compareTo(o.toBig());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WeightSum && this.compareTo((WeightSum)o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.infinite ? -1 : this.toBig().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.infinite ? "inf" : (this.bigSum == null ? String.valueOf(this.longSum) : this.bigSum.toString());
+    }
+}
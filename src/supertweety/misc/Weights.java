@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.misc;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable indexed table of integer weights, null weights are hard (infinite) as in the rest of the code. When all
+ * the weights fit into long (and can be negated), they are stored only as longs and added to WeightSums by primitive
+ * arithmetic, otherwise the BigIntegers are kept and used instead.
+ */
+public class Weights {
+
+    private final long[] longWeights;
+
+    //null if all the weights fit into long
+    private final BigInteger[] bigWeights;
+
+    private final BitSet hard = new BitSet();
+
+    public Weights(List<BigInteger> weights){
+        boolean allLong = true;
+        for (BigInteger weight : weights){
+            if (weight != null && !fitsLong(weight)){
+                allLong = false;
+                break;
+            }
+        }
+        this.longWeights = allLong ? new long[weights.size()] : null;
+        this.bigWeights = allLong ? null : new BigInteger[weights.size()];
+        int i = 0;
+        for (BigInteger weight : weights){
+            if (weight == null){
+                this.hard.set(i);
+            } else if (allLong){
+                this.longWeights[i] = weight.longValue();
+            } else {
+                this.bigWeights[i] = weight;
+            }
+            i++;
+        }
+    }
+
+    private static boolean fitsLong(BigInteger weight){
+        return weight.bitLength() < 64 && weight.longValue() != Long.MIN_VALUE;
+    }
+
+    public int size(){
+        return this.longWeights == null ? this.bigWeights.length : this.longWeights.length;
+    }
+
+    /**
+     * @return true if all the weights are stored as longs
+     */
+    public boolean isLong(){
+        return this.bigWeights == null;
+    }
+
+    public boolean isHard(int i){
+        return this.hard.get(i);
+    }
+
+    /**
+     * @return the signum of the i-th weight, 1 for hard weights
+     */
+    public int signum(int i){
+        if (this.hard.get(i)){
+            return 1;
+        }
+        return this.bigWeights == null ? Long.signum(this.longWeights[i]) : this.bigWeights[i].signum();
+    }
+
+    /**
+     * @return the i-th weight, null if it is hard
+     */
+    public BigInteger get(int i){
+        if (this.hard.get(i)){
+            return null;
+        }
+        return this.bigWeights == null ? BigInteger.valueOf(this.longWeights[i]) : this.bigWeights[i];
+    }
+
+    /**
+     * Adds the i-th weight (infinite if it is hard) times the given number to the sum.
+     * @return the sum
+     */
+    public WeightSum addTo(WeightSum sum, int i, long times){
+        if (this.hard.get(i)){
+            return times == 0 ? sum : sum.add((BigInteger)null);
+        }
+        if (this.bigWeights == null){
+            return sum.add(this.longWeights[i], times);
+        }
+        return sum.add(this.bigWeights[i].multiply(BigInteger.valueOf(times)));
+    }
+
+    /**
+     * Adds the i-th weight (infinite if it is hard) to the sum.
+     * @return the sum
+     */
+    public WeightSum addTo(WeightSum sum, int i){
+        if (this.hard.get(i)){
+            return sum.add((BigInteger)null);
+        }
+        return this.bigWeights == null ? sum.add(this.longWeights[i]) : sum.add(this.bigWeights[i]);
+    }
+
+    /**
+     * Adds the absolute value of the i-th weight (infinite if it is hard) to the sum.
+     * @return the sum
+     */
+    public WeightSum addAbsTo(WeightSum sum, int i){
+        if (this.hard.get(i)){
+            return sum.add((BigInteger)null);
+        }
+        return this.bigWeights == null ? sum.add(Math.abs(this.longWeights[i])) : sum.add(this.bigWeights[i].abs());
+    }
+
+    /**
+     * Subtracts the i-th weight, which must not be hard, from the sum.
+     * @return the sum
+     */
+    public WeightSum subtractFrom(WeightSum sum, int i){
+        return this.bigWeights == null ? sum.add(-this.longWeights[i]) : sum.subtract(this.bigWeights[i]);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.mln;
+
+import ida.ilp.logic.Clause;
+import ida.ilp.logic.Literal;
+import ida.utils.tuples.Pair;
+import supertweety.logic.GroundAtomTable;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Store of weighted ground clauses used as the active ground program in runMAPInference. Every clause is kept as
+ * a sorted array of signed atom ids from a GroundAtomTable, so duplicates are detected regardless of the order of
+ * literals and no Clause objects are kept between the iterations (clauses() builds them only for the current solver
+ * call). For every clause, the store counts the number of consecutive iterations in which the clause has not been
+ * penalized, which is used to evict clauses when the number of stored clauses exceeds a given cap.
+ */
+public class GroundClauseStore {
+
+    private final GroundAtomTable atoms;
+
+    private final Set<GroundClause> clauses = new LinkedHashSet<GroundClause>();
+
+    public GroundClauseStore(GroundAtomTable atoms){
+        this.atoms = atoms;
+    }
+
+    /**
+     * Adds a ground clause to the store.
+     * @param clause ground clause
+     * @param weight weight of the clause, null for hard clauses
+     * @return true if the clause was not in the store
+     */
+    public boolean add(Clause clause, BigInteger weight){
+        return this.clauses.add(groundClause(clause, weight));
+    }
+
+    /**
+     * @param clause ground clause
+     * @param weight weight of the clause, null for hard clauses
+     * @return true if the clause is in the store
+     */
+    public boolean contains(Clause clause, BigInteger weight){
+        return this.clauses.contains(groundClause(clause, weight));
+    }
+
+    private GroundClause groundClause(Clause clause, BigInteger weight){
+        int[] literals = new int[clause.countLiterals()];
+        int i = 0;
+        for (Literal l : clause.literals()){
+            literals[i++] = atoms.intern(l);
+        }
+        Arrays.sort(literals);
+        return new GroundClause(literals, weight);
+    }
+
+    /**
+     * Updates the number of iterations for which the stored clauses have not been penalized in the given state.
+     * A clause with non-negative weight (or a hard clause) is penalized when it is violated, a clause with negative
+     * weight is penalized when it is satisfied.
+     * @param state current state
+     */
+    public void age(WorldState state){
+        for (GroundClause clause : this.clauses){
+            boolean penalized = clause.weight != null && clause.weight.signum() < 0 ? clause.isSatisfied(state) : !clause.isSatisfied(state);
+            clause.notPenalizedFor = penalized ? 0 : clause.notPenalizedFor+1;
+        }
+    }
+
+    /**
+     * Evicts soft clauses which have not been penalized for at least minIterations iterations (those not penalized
+     * for the longest time first) until there are at most maxSize clauses in the store. Hard clauses are never evicted,
+     * so the store may stay larger than maxSize.
+     * @param maxSize the cap on the number of stored clauses
+     * @param minIterations minimum number of iterations for which an evicted clause must not have been penalized
+     * @return the number of evicted clauses
+     */
+    public int evict(int maxSize, int minIterations){
+        if (this.clauses.size() <= maxSize){
+            return 0;
+        }
+        List<GroundClause> candidates = new ArrayList<GroundClause>();
+        for (GroundClause clause : this.clauses){
+            if (clause.weight != null && clause.notPenalizedFor >= minIterations){
+                candidates.add(clause);
+            }
+        }
+        Collections.sort(candidates, new Comparator<GroundClause>() {
+            @Override
+            public int compare(GroundClause o1, GroundClause o2) {
+                return o2.notPenalizedFor - o1.notPenalizedFor;
+            }
+        });
+        int evicted = 0;
+        for (GroundClause clause : candidates){
+            if (this.clauses.size() <= maxSize){
+                break;
+            }
+            this.clauses.remove(clause);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return new list of the stored clauses converted to Clause objects (the literals are shared with
+     * the GroundAtomTable), the store does not keep any reference to it
+     */
+    public List<Pair<Clause,BigInteger>> clauses(){
+        List<Pair<Clause,BigInteger>> retVal = new ArrayList<Pair<Clause,BigInteger>>(this.clauses.size());
+        for (GroundClause clause : this.clauses){
+            List<Literal> literals = new ArrayList<Literal>(clause.literals.length);
+            for (int id : clause.literals){
+                literals.add(atoms.literal(id));
+            }
+            retVal.add(new Pair<Clause,BigInteger>(new Clause(literals), clause.weight));
+        }
+        return retVal;
+    }
+
+    public int size(){
+        return this.clauses.size();
+    }
+
+    private static class GroundClause {
+
+        private final int[] literals;
+
+        private final BigInteger weight;
+
+        private final int hashCode;
+
+        private int notPenalizedFor;
+
+        private GroundClause(int[] literals, BigInteger weight){
+            this.literals = literals;
+            this.weight = weight;
+            this.hashCode = 31*Arrays.hashCode(literals)+(weight == null ? 0 : weight.hashCode());
+        }
+
+        private boolean isSatisfied(WorldState state){
+            for (int literal : literals){
+                if (literal > 0 ? state.contains(literal) : !state.contains(-literal)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof GroundClause)){
+                return false;
+            }
+            GroundClause other = (GroundClause)o;
+            return this.hashCode == other.hashCode && Arrays.equals(this.literals, other.literals) &&
+                    (this.weight == null ? other.weight == null : this.weight.equals(other.weight));
+        }
+
+        @Override
+        public int hashCode(){
+            return this.hashCode;
+        }
+    }
+}
@@ -14,14 +14,26 @@ import ida.ilp.logic.*;
 import ida.ilp.logic.subsumption.Matching;
 import ida.ilp.logic.subsumption.SpecialBinaryPredicates;
 import ida.ilp.logic.subsumption.SpecialVarargPredicates;
+import ida.utils.Parallel;
 import ida.utils.Sugar;
+import ida.utils.VectorUtils;
 import ida.utils.tuples.Pair;
+import supertweety.logic.DecomposingGroundProgramSolver;
+import supertweety.logic.GroundAtomTable;
+import supertweety.logic.GroundProgramSimplifier;
 import supertweety.logic.GroundProgramSolver;
+import supertweety.logic.IncrementalGroundProgramSolver;
+import supertweety.logic.InferenceListener;
+import supertweety.logic.MaxWalkSAT;
+import supertweety.logic.PortfolioGroundProgramSolver;
 import supertweety.logic.ProgramSolver;
 import supertweety.misc.Utils;
+import supertweety.misc.WeightSum;
+import supertweety.misc.Weights;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by kuzelkao_cardiff on 19/01/15.
@@ -30,13 +42,15 @@ public class MarkovLogic {
 
     private List<Pair<Clause,BigInteger>> rules = new ArrayList<Pair<Clause,BigInteger>>();
 
-    private Set<Literal> evidence = new HashSet<Literal>();
+    private GroundAtomTable atoms = new GroundAtomTable();
 
-    private Set<Literal> state = new HashSet<Literal>();
+    private WorldState evidence = new WorldState(atoms);
+
+    private WorldState state = new WorldState(atoms);
 
     private Matching matching;
 
-    private Set<Literal> deterministic = new HashSet<Literal>();
+    private WorldState deterministic = new WorldState(atoms);
 
     private Set<Pair<String,Integer>> deterministicPredicates = new HashSet<Pair<String,Integer>>();
 
@@ -44,8 +58,85 @@ public class MarkovLogic {
 
     private Map<Pair<String,Integer>,String[]> typing = new HashMap<Pair<String,Integer>,String[]>();
 
+    //ids of all ground atoms of the given predicates over the constants from the rules (shared by the copies
+    //created by makeCopy(), a new map is created when the rules or the typing change)
+    private ConcurrentHashMap<Pair<String,Integer>,int[]> herbrandBase = new ConcurrentHashMap<Pair<String,Integer>,int[]>();
+
+    //true if the rules, the predicates, the typing and the deterministic literals are shared with a copy created
+    //by makeCopy() (or with the MarkovLogic this is a copy of), they are copied before they are modified
+    private boolean sharedModel = false;
+
     private int mapTimeout = Integer.MAX_VALUE;
 
+    public final static int EXACT_MAP = 1, LOCAL_SEARCH_MAP = 2, PORTFOLIO_MAP = 3, CORE_GUIDED_MAP = 4;
+
+    private int mapEngine = EXACT_MAP;
+
+    private double localSearchNoise = 0.2;
+
+    private int localSearchTabuLength = 5, localSearchMaxFlips = 100000, localSearchMaxTries = 10;
+
+    private boolean incrementalViolatedRulesSearch = false;
+
+    private boolean incrementalMaxSat = false;
+
+    private boolean memoryBoundedGrounding = false;
+
+    private int maxGroundClauses = Integer.MAX_VALUE, groundClauseEvictionAge = 10;
+
+    //the maximum number of violated groundings added to the ground program in one iteration of runMAPInference
+    private int maxNewGroundClauses = Integer.MAX_VALUE;
+
+    private Set<Literal> lastSearchedAtoms;
+
+    private Set<Term> lastSearchedTerms;
+
+    private Map<Term,Integer> stateTermCounts;
+
+    private Parallel parallel;
+
+    private boolean componentDecomposition = false;
+
+    private Parallel componentParallel;
+
+    private Parallel batchParallel;
+
+    private final static int PARALLEL_SPLIT_MIN_VARIABLES = 3;
+
+    //hard clauses first, then soft clauses by decreasing absolute value of their weights
+    private final static Comparator<Pair<Clause,BigInteger>> HEAVIEST_FIRST = new Comparator<Pair<Clause,BigInteger>>() {
+        @Override
+        public int compare(Pair<Clause,BigInteger> o1, Pair<Clause,BigInteger> o2) {
+            if (o1.s == null || o2.s == null){
+                return o1.s == null ? (o2.s == null ? 0 : -1) : 1;
+            }
+            return o2.s.abs().compareTo(o1.s.abs());
+        }
+    };
+
+    private OccurrenceIndex occurrenceIndex;
+
+    //the weights of the rules (in the same order), null if they have to be recomputed
+    private Weights ruleWeights;
+
+    private List<InferenceListener> inferenceListeners = new ArrayList<InferenceListener>();
+
+    //whether the solver called in the last iteration of MAP inference hit the time limit
+    private boolean solverTimedOut;
+
+    private boolean groundProgramSimplification = true;
+
+    private boolean stratifiedMaxSat = false;
+
+    //the number of ground programs won by the exact solver and by the local search when the MAP engine is PORTFOLIO_MAP
+    private int[] portfolioWins = new int[3];
+
+    private int mapTimeBudget = Integer.MAX_VALUE;
+
+    private WeightSum mapPenalty;
+
+    private boolean mapOptimal;
+
     public MarkovLogic(){}
 
     public MarkovLogic(Collection<Pair<Clause,BigInteger>> rules){
@@ -58,28 +149,28 @@ public class MarkovLogic {
     }
 
     public void addEvidence(Literal l){
-        Literal negL = l.negation();
-        if (this.deterministic.contains(negL)){
-            throw new MLNContradictionException(l+" and "+l.negation()+" cannot be deterministic literals at the same time.");
-        }
-        if (!this.state.contains(l) || this.state.contains(negL)) {
-            this.matching = null;
+        int id = this.atoms.intern(l);
+        if (this.deterministic.contains(-id)){
+            throw new MLNContradictionException(l+" and "+this.atoms.literal(-id)+" cannot be deterministic literals at the same time.");
         }
-        if (this.state.contains(negL)){
-            this.state.remove(negL);
+        if (!this.state.contains(id) || this.state.contains(-id)) {
+            this.invalidateMatching();
         }
-        this.state.add(l);
-        this.evidence.add(l);
+        this.state.remove(-id);
+        this.state.add(id);
+        this.evidence.add(id);
 
     }
 
     public void addDeterministicLiteral(Literal l){
-        if (this.deterministic.contains(l.negation())){
-            throw new MLNContradictionException(l+" and "+l.negation()+" cannot be deterministic literals at the same time.");
+        this.ensureOwnModel();
+        int id = this.atoms.intern(l);
+        if (this.deterministic.contains(-id)){
+            throw new MLNContradictionException(l+" and "+this.atoms.literal(-id)+" cannot be deterministic literals at the same time.");
         }
         this.deterministicPredicates.add(new Pair<String,Integer>(l.predicate(), l.arity()));
-        this.deterministic.add(l);
-        this.state.add(l);
+        this.deterministic.add(id);
+        this.state.add(id);
     }
 
     public void addRule(Clause rule, int weight){
@@ -87,14 +178,22 @@ public class MarkovLogic {
     }
 
     public void addRule(Clause rule, BigInteger weight){
+        this.ensureOwnModel();
         this.rules.add(new Pair<Clause,BigInteger>(rule, weight));
+        this.occurrenceIndex = null;
+        this.ruleWeights = null;
+        this.herbrandBase = new ConcurrentHashMap<Pair<String,Integer>,int[]>();
         for (Literal l : rule.literals()){
             this.predicates.add(new Pair<String,Integer>(l.predicate(), l.arity()));
         }
     }
 
     public void addHardRule(Clause rule){
+        this.ensureOwnModel();
         this.rules.add(new Pair<Clause, BigInteger>(rule, null));
+        this.occurrenceIndex = null;
+        this.ruleWeights = null;
+        this.herbrandBase = new ConcurrentHashMap<Pair<String,Integer>,int[]>();
         for (Literal l : rule.literals()){
             this.predicates.add(new Pair<String, Integer>(l.predicate(), l.arity()));
         }
@@ -110,12 +209,24 @@ public class MarkovLogic {
     }
 
     public void setState(Literal l){
-        setState(l, this.state);
-        this.matching = null;
+        setState(this.atoms.intern(l));
+        this.invalidateMatching();
+    }
+
+    /**
+     * Sets the truth value of the given ground atom in the current state. Unlike setState(l.negation()),
+     * this method does not allocate any new literals once the atom has been seen by this MarkovLogic.
+     * @param atom ground atom
+     * @param truthValue the new truth value of the atom
+     */
+    public void setState(Literal atom, boolean truthValue){
+        int id = this.atoms.intern(atom);
+        setState(truthValue ? id : -id);
+        this.invalidateMatching();
     }
 
     public List<Pair<Clause,BigInteger>> rules(){
-        return this.rules;
+        return Collections.unmodifiableList(this.rules);
     }
 
     public List<Clause> hardRules(){
@@ -129,23 +240,25 @@ public class MarkovLogic {
     }
 
     public Set<Pair<String,Integer>> predicates(){
-        return this.predicates;
+        return Collections.unmodifiableSet(this.predicates);
     }
 
     public Set<Literal> state(){
         return this.state;
     }
 
-    private void setState(Literal l, Set<Literal> state){
-        Literal negL = l.negation();
-        if (deterministic.contains(negL)){
-            throw new MLNContradictionException(l+" and "+l.negation()+" cannot be deterministic literals at the same time.");
-        }
-        if (state.contains(negL)){
-            state.remove(negL);
+    private void invalidateMatching(){
+        this.matching = null;
+        this.stateTermCounts = null;
+    }
+
+    private void setState(int id){
+        if (deterministic.contains(-id)){
+            throw new MLNContradictionException(this.atoms.literal(id)+" and "+this.atoms.literal(-id)+" cannot be deterministic literals at the same time.");
         }
-        if (!l.isNegated()) {
-            state.add(l);
+        state.remove(-id);
+        if (id > 0) {
+            state.add(id);
         }
     }
 
@@ -165,67 +278,458 @@ public class MarkovLogic {
 //    }
 
     public double doublePenalty(){
-        BigInteger penalty = penalty();
-        return penalty == null ? Double.POSITIVE_INFINITY : penalty.doubleValue();
+        return penaltySum().doubleValue();
     }
 
     public BigInteger penalty(){
         return penalty(findViolatedRules());
     }
 
+    /**
+     * @return the penalty of the current state, computed in long arithmetic unless it overflows (infinite if some
+     * hard rule is violated)
+     */
+    public WeightSum penaltySum(){
+        if (this.parallel != null){
+            return penaltySum(findViolatedRules());
+        }
+        //the violated groundings are counted rule by rule, so every rule weight is added only once (multiplied by
+        //the count) and the search stops at the first violated hard rule
+        Weights weights = ruleWeights();
+        if (matching == null) {
+            matching = new Matching(Sugar.list(new Clause(state)));
+        }
+        WeightSum penalty = new WeightSum();
+        List<Pair<Clause,BigInteger>> violated = new ArrayList<Pair<Clause,BigInteger>>();
+        for (int i = 0; i < this.rules.size() && !penalty.isInfinite(); i++){
+            findViolatedGroundings(this.rules.get(i), matching, violated);
+            weights.addTo(penalty, i, violated.size());
+            violated.clear();
+        }
+        return penalty;
+    }
+
+    private Weights ruleWeights(){
+        if (this.ruleWeights == null){
+            List<BigInteger> weights = new ArrayList<BigInteger>(this.rules.size());
+            for (Pair<Clause,BigInteger> rule : this.rules){
+                weights.add(rule.s);
+            }
+            this.ruleWeights = new Weights(weights);
+        }
+        return this.ruleWeights;
+    }
+
     public static BigInteger penalty(Collection<Pair<Clause,BigInteger>> violatedRules){
-        BigInteger penalty = BigInteger.ZERO;
+        return penaltySum(violatedRules).toBigInteger();
+    }
+
+    public static WeightSum penaltySum(Collection<Pair<Clause,BigInteger>> violatedRules){
+        WeightSum penalty = new WeightSum();
         for (Pair<Clause,BigInteger> violatedRule : violatedRules){
-            if (violatedRule.s != null) {
-                penalty = penalty.add(violatedRule.s);
-            } else {
-                return null;
+            penalty.add(violatedRule.s);
+            if (penalty.isInfinite()){
+                break;
             }
         }
         return penalty;
     }
 
+    public BigInteger penaltyDelta(Literal l){
+        return penaltyDelta(l, true);
+    }
+
+    /**
+     * Computes how penalty() would change if the truth value of the given ground atom was changed (the state itself
+     * is not changed). Only the groundings of the rules which contain the atom are evaluated, they are kept in an index
+     * which is valid as long as the rules and the set of terms in the state do not change. If the change would remove
+     * a term from the state or add a new one, the penalties are computed from scratch.
+     *
+     * The result is meaningful only if the current state does not violate any hard rule.
+     *
+     * @param atom ground atom
+     * @param truthValue the new truth value of the atom
+     * @return the difference between the penalty after the change and the current penalty, or null if the change
+     * would violate some hard rule
+     */
+    public BigInteger penaltyDelta(Literal atom, boolean truthValue){
+        WeightSum delta = penaltyDeltaSum(atom, truthValue);
+        return delta == null ? null : delta.toBigInteger();
+    }
+
+    /**
+     * The same as penaltyDelta(atom, truthValue), but the difference is returned as a WeightSum, which is computed
+     * in long arithmetic unless it overflows.
+     */
+    public WeightSum penaltyDeltaSum(Literal atom, boolean truthValue){
+        int id = this.atoms.intern(atom);
+        if (!truthValue){
+            id = -id;
+        }
+        int atomId = Math.abs(id);
+        if (this.state.contains(atomId) == id > 0){
+            return new WeightSum();
+        }
+        if (!preservesTerms(id)){
+            WeightSum before = penaltySum();
+            //the atom is flipped and restored in the same WorldState, so the sets returned by state() stay valid
+            setState(id);
+            this.invalidateMatching();
+            WeightSum after;
+            try {
+                after = penaltySum();
+            } finally {
+                setState(-id);
+                this.invalidateMatching();
+            }
+            return before.isInfinite() || after.isInfinite() ? null : after.subtract(before);
+        }
+        if (this.occurrenceIndex == null){
+            this.occurrenceIndex = new OccurrenceIndex(Sugar.setFromCollections(stateTermCounts().keySet()));
+        }
+        Weights weights = ruleWeights();
+        WeightSum delta = new WeightSum();
+        for (Pair<int[],Integer> grounding : this.occurrenceIndex.groundings(atomId)){
+            boolean before = isGroundingSatisfied(grounding.r, 0);
+            boolean after = isGroundingSatisfied(grounding.r, id);
+            if (before != after){
+                if (weights.isHard(grounding.s)){
+                    if (!after){
+                        return null;
+                    }
+                } else if ((weights.signum(grounding.s) > 0) == after){
+                    //penalty() counts positive weights of violated groundings and negative weights of true groundings
+                    weights.subtractFrom(delta, grounding.s);
+                } else {
+                    weights.addTo(delta, grounding.s);
+                }
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Checks whether setting the literal with the given signed id true changes the set of terms in the state.
+     */
+    private boolean preservesTerms(int id){
+        Map<Term,Integer> counts = stateTermCounts();
+        Literal atom = this.atoms.literal(Math.abs(id));
+        if (id > 0){
+            if (this.state.contains(-id)){
+                //the negative evidence literal with the same terms is replaced
+                return true;
+            }
+            for (int i = 0; i < atom.arity(); i++){
+                if (!counts.containsKey(atom.get(i))){
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < atom.arity(); i++){
+                if (counts.get(atom.get(i)) < 2){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return for every term in the state, the number of literals in the state which contain it
+     */
+    private Map<Term,Integer> stateTermCounts(){
+        if (this.stateTermCounts == null){
+            Map<Term,Integer> counts = new HashMap<Term,Integer>();
+            for (Literal l : this.state){
+                for (Term t : l.terms()){
+                    Integer count = counts.get(t);
+                    counts.put(t, count == null ? 1 : count+1);
+                }
+            }
+            if (this.occurrenceIndex != null && !this.occurrenceIndex.universe.equals(counts.keySet())){
+                this.occurrenceIndex = null;
+            }
+            this.stateTermCounts = counts;
+        }
+        return this.stateTermCounts;
+    }
+
+    /**
+     * Evaluates an indexed grounding in the current state in which the literal with signed id flippedLiteral
+     * (if non-zero) is set true.
+     */
+    private boolean isGroundingSatisfied(int[] grounding, int flippedLiteral){
+        int flippedAtom = Math.abs(flippedLiteral);
+        for (int literal : grounding){
+            int atom = Math.abs(literal);
+            boolean value = atom == flippedAtom ? flippedLiteral > 0 : this.state.contains(atom);
+            if (value == literal > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<Pair<Clause,BigInteger>> findViolatedRules(){
         return this.findViolatedRules(this.rules);
     }
 
     public List<Pair<Clause,BigInteger>> findViolatedRules(Collection<Pair<Clause,BigInteger>> rules){
+        if (this.parallel != null){
+            return findViolatedRulesInParallel(rules);
+        }
         List<Pair<Clause,BigInteger>> violated = new ArrayList<Pair<Clause,BigInteger>>();
         if (matching == null) {
             matching = new Matching(Sugar.list(new Clause(state)));
         }
         for (Pair<Clause,BigInteger> rule : rules){
-            if (LogicUtils.isGround(rule.r)){
-                if (rule.s == null || rule.s.compareTo(BigInteger.ZERO) > 0){
-                    if (matching.subsumption(Utils.flipSigns(rule.r), 0)){
-                        violated.add(rule);
-                    }
-                } else if (rule.s.compareTo(BigInteger.ZERO) < 0){
-                    for (Literal literal : rule.r.literals()){
-                        if ((!literal.isNegated() && state.contains(literal)) ||
-                                (literal.isNegated() && !state.contains(literal))){
-                            violated.add(rule);
-                            break;
+            findViolatedGroundings(rule, matching, violated);
+        }
+        return violated;
+    }
+
+    /**
+     * Parallel version of findViolatedRules. Every rule is searched by a separate task, rules with at least
+     * PARALLEL_SPLIT_MIN_VARIABLES variables are split further into one task per possible value of their first
+     * variable. Every thread uses its own Matching (and hence its own SubsumptionEngineJ2). The results are
+     * merged in the order of the tasks, so they do not depend on the scheduling of the threads.
+     */
+    private List<Pair<Clause,BigInteger>> findViolatedRulesInParallel(Collection<Pair<Clause,BigInteger>> rules){
+        final Clause stateClause = new Clause(state);
+        final List<Matching> matchings = new ArrayList<Matching>();
+        final List<Pair<Clause,BigInteger>> taskRules = new ArrayList<Pair<Clause,BigInteger>>();
+        final List<Map<Term,Term>> taskSeeds = new ArrayList<Map<Term,Term>>();
+        for (Pair<Clause,BigInteger> rule : rules){
+            Set<Variable> variables = rule.r.variables();
+            if (variables.size() >= PARALLEL_SPLIT_MIN_VARIABLES){
+                Variable first = null;
+                for (Literal l : rule.r.literals()){
+                    for (int i = 0; i < l.arity() && first == null; i++){
+                        if (l.get(i) instanceof Variable){
+                            first = (Variable)l.get(i);
                         }
                     }
                 }
+                for (Term t : stateClause.terms()){
+                    if (first.type() == null || first.type().equals(t.type())){
+                        Map<Term,Term> seed = new HashMap<Term,Term>();
+                        seed.put(first, t);
+                        taskRules.add(rule);
+                        taskSeeds.add(seed);
+                    }
+                }
             } else {
-                if (rule.s == null || rule.s.compareTo(BigInteger.ZERO) > 0) {
-                    Pair<Term[], List<Term[]>> substitutions = matching.allSubstitutions(Utils.flipSigns(rule.r), 0, Integer.MAX_VALUE);
-                    for (Term[] subs : substitutions.s) {
-                        violated.add(new Pair<Clause, BigInteger>(Utils.substitute(rule.r, substitutions.r, subs), rule.s));
+                taskRules.add(rule);
+                taskSeeds.add(null);
+            }
+        }
+        final List<List<Pair<Clause,BigInteger>>> results = new ArrayList<List<Pair<Clause,BigInteger>>>(Collections.<List<Pair<Clause,BigInteger>>>nCopies(taskRules.size(), null));
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < results.size(); i++){
+            final int index = i;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    Matching m = null;
+                    synchronized (matchings){
+                        if (!matchings.isEmpty()){
+                            m = matchings.remove(matchings.size()-1);
+                        }
+                    }
+                    if (m == null){
+                        m = new Matching(Sugar.list(stateClause));
                     }
-                } else if (rule.s.compareTo(BigInteger.ZERO) < 0) {
-                    Pair<Term[], List<Term[]>> substitutions = matching.allTrueGroundings(rule.r, 0);
-                    for (Term[] subs : substitutions.s) {
-                        violated.add(new Pair<Clause, BigInteger>(Utils.substitute(rule.r, substitutions.r, subs), rule.s));
+                    List<Pair<Clause,BigInteger>> violated = new ArrayList<Pair<Clause,BigInteger>>();
+                    if (taskSeeds.get(index) == null){
+                        findViolatedGroundings(taskRules.get(index), m, violated);
+                    } else {
+                        findSeededViolatedGroundings(taskRules.get(index), taskSeeds.get(index), m, violated);
+                    }
+                    results.set(index, violated);
+                    synchronized (matchings){
+                        matchings.add(m);
                     }
                 }
-            }
+            });
+        }
+        this.parallel.runTasks(tasks);
+        List<Pair<Clause,BigInteger>> violated = new ArrayList<Pair<Clause,BigInteger>>();
+        for (List<Pair<Clause,BigInteger>> result : results){
+            violated.addAll(result);
         }
         return violated;
     }
 
+    /**
+     * Finds the groundings of the rules which are violated in the current state and which contain at least one atom
+     * whose truth value changed since the last call of this method - the subsumption search for every rule is seeded
+     * by the changed atoms. When this method is called for the first time or when the set of terms occurring
+     * in the state changed, all violated groundings are returned (as by findViolatedRules()).
+     *
+     * The other violated groundings must have been violated already in the previous state, therefore the union of the
+     * results of the consecutive calls is the same as the union of the results of findViolatedRules()
+     * called on the same sequence of states.
+     *
+     * @return the newly violated groundings (without duplicates)
+     */
+    public List<Pair<Clause,BigInteger>> findNewlyViolatedRules(){
+        Set<Literal> atoms = new HashSet<Literal>();
+        Set<Term> terms = new HashSet<Term>();
+        for (Literal l : this.state){
+            if (!l.isNegated()){
+                atoms.add(l);
+            }
+            for (int i = 0; i < l.arity(); i++){
+                terms.add(l.get(i));
+            }
+        }
+        Set<Literal> lastAtoms = this.lastSearchedAtoms;
+        Set<Term> lastTerms = this.lastSearchedTerms;
+        this.lastSearchedAtoms = atoms;
+        this.lastSearchedTerms = terms;
+        if (lastAtoms == null || !terms.equals(lastTerms)){
+            return Sugar.listFromCollections(Sugar.setFromCollections(findViolatedRules()));
+        }
+        if (matching == null) {
+            matching = new Matching(Sugar.list(new Clause(state)));
+        }
+        Set<Pair<Clause,BigInteger>> violated = new LinkedHashSet<Pair<Clause,BigInteger>>();
+        for (Literal changedAtom : Sugar.iterable(Sugar.setDifference(atoms, lastAtoms), Sugar.setDifference(lastAtoms, atoms))){
+            for (Pair<Clause,BigInteger> rule : this.rules){
+                for (Literal literal : rule.r.literals()){
+                    Map<Term,Term> substitution;
+                    if (literal.predicate().equals(changedAtom.predicate()) && literal.arity() == changedAtom.arity() &&
+                            (substitution = unify(literal, changedAtom)) != null){
+                        if (LogicUtils.isGround(rule.r)){
+                            findViolatedGroundings(rule, matching, violated);
+                        } else {
+                            findSeededViolatedGroundings(rule, substitution, matching, violated);
+                        }
+                    }
+                }
+            }
+        }
+        return Sugar.listFromCollections(violated);
+    }
+
+    private void findViolatedGroundings(Pair<Clause,BigInteger> rule, Matching matching, Collection<Pair<Clause,BigInteger>> violated){
+        if (LogicUtils.isGround(rule.r)){
+            if (rule.s == null || rule.s.compareTo(BigInteger.ZERO) > 0){
+                if (matching.subsumption(Utils.flipSigns(rule.r), 0)){
+                    violated.add(rule);
+                }
+            } else if (rule.s.compareTo(BigInteger.ZERO) < 0){
+                for (Literal literal : rule.r.literals()){
+                    if ((!literal.isNegated() && state.contains(literal)) ||
+                            (literal.isNegated() && !state.containsNegation(literal))){
+                        violated.add(rule);
+                        break;
+                    }
+                }
+            }
+        } else {
+            if (rule.s == null || rule.s.compareTo(BigInteger.ZERO) > 0) {
+                Pair<Term[], List<Term[]>> substitutions = matching.allSubstitutions(Utils.flipSigns(rule.r), 0, Integer.MAX_VALUE);
+                for (Term[] subs : substitutions.s) {
+                    violated.add(new Pair<Clause, BigInteger>(Utils.substitute(rule.r, substitutions.r, subs), rule.s));
+                }
+            } else if (rule.s.compareTo(BigInteger.ZERO) < 0) {
+                Matching.TrueGroundings trueGroundings = matching.trueGroundings(rule.r, 0);
+                Term[] variables = trueGroundings.variables();
+                Term[] values = new Term[variables.length];
+                while (trueGroundings.next()) {
+                    int[] indices = trueGroundings.indices();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = trueGroundings.domain(i)[indices[i]];
+                    }
+                    violated.add(new Pair<Clause, BigInteger>(Utils.substitute(rule.r, variables, values), rule.s));
+                }
+            }
+        }
+    }
+
+    private void findSeededViolatedGroundings(Pair<Clause,BigInteger> rule, Map<Term,Term> seed, Matching matching, Collection<Pair<Clause,BigInteger>> violated){
+        Clause seededRule = LogicUtils.substitute(rule.r, seed);
+        Pair<Term[], List<Term[]>> substitutions;
+        if (LogicUtils.isGround(seededRule)){
+            substitutions = new Pair<Term[],List<Term[]>>(new Term[0], Sugar.<Term[]>list(new Term[0]));
+        } else if (rule.s == null || rule.s.compareTo(BigInteger.ZERO) > 0){
+            substitutions = matching.allSubstitutions(Utils.flipSigns(seededRule), 0, Integer.MAX_VALUE);
+        } else if (rule.s.compareTo(BigInteger.ZERO) < 0){
+            Matching.TrueGroundings trueGroundings = matching.trueGroundings(seededRule, 0);
+            Term[] variables = trueGroundings.variables();
+            while (trueGroundings.next()){
+                int[] indices = trueGroundings.indices();
+                Map<Term,Term> substitution = new HashMap<Term,Term>(seed);
+                for (int i = 0; i < variables.length; i++){
+                    substitution.put(variables[i], trueGroundings.domain(i)[indices[i]]);
+                }
+                Pair<Clause,BigInteger> grounding = new Pair<Clause,BigInteger>(Utils.substitute(rule.r, substitution), rule.s);
+                if (isGroundingViolated(grounding)){
+                    violated.add(grounding);
+                }
+            }
+            return;
+        } else {
+            return;
+        }
+        for (Term[] subs : substitutions.s){
+            Map<Term,Term> substitution = new HashMap<Term,Term>(seed);
+            for (int i = 0; i < subs.length; i++){
+                substitution.put(substitutions.r[i], subs[i]);
+            }
+            Pair<Clause,BigInteger> grounding = new Pair<Clause,BigInteger>(Utils.substitute(rule.r, substitution), rule.s);
+            //the subsumption engine does not check all literals which contain only constants,
+            //so the candidate groundings are verified directly
+            if (isGroundingViolated(grounding)){
+                violated.add(grounding);
+            }
+        }
+    }
+
+    private boolean isGroundingViolated(Pair<Clause,BigInteger> grounding){
+        boolean satisfied = false;
+        for (Literal literal : grounding.r.literals()){
+            if (SpecialVarargPredicates.SPECIAL_PREDICATES.contains(literal.predicate()) || SpecialBinaryPredicates.SPECIAL_PREDICATES.contains(literal.predicate())){
+                satisfied = isSpecialGroundTrue(literal);
+            } else if (literal.isNegated()){
+                satisfied = !state.containsNegation(literal);
+            } else {
+                satisfied = state.contains(literal);
+            }
+            if (satisfied){
+                break;
+            }
+        }
+        if (grounding.s == null || grounding.s.compareTo(BigInteger.ZERO) > 0){
+            return !satisfied;
+        } else {
+            return grounding.s.compareTo(BigInteger.ZERO) < 0 && satisfied;
+        }
+    }
+
+    private static Map<Term,Term> unify(Literal literal, Literal groundAtom){
+        Map<Term,Term> substitution = new HashMap<Term,Term>();
+        for (int i = 0; i < literal.arity(); i++){
+            Term t = literal.get(i);
+            Term c = groundAtom.get(i);
+            if (t instanceof Variable){
+                Term old = substitution.get(t);
+                if (old == null){
+                    if (t.type() != null && !t.type().equals(c.type())){
+                        return null;
+                    }
+                    substitution.put(t, c);
+                } else if (!old.equals(c)){
+                    return null;
+                }
+            } else if (!t.equals(c)){
+                return null;
+            }
+        }
+        return substitution;
+    }
+
     public boolean isConsistent(){
         List<Clause> hardRules = new ArrayList<Clause>();
         for (Pair<Clause,BigInteger> rule : rules){
@@ -238,38 +742,117 @@ public class MarkovLogic {
         return ps.solve(hardRules, this.evidence, this.deterministic) != null;
     }
 
+    /**
+     * Runs the cutting-plane MAP inference for at most the given number of iterations. If the MAP time budget is set
+     * (setMAPTimeBudget), the inference stops when the budget is used up and the best state found so far is kept.
+     * If a solver call hits its time limit without finding any model, the inference also stops with the current
+     * state instead of failing. The penalty of the resulting state and whether it is guaranteed to be a MAP state
+     * are available from mapPenalty() and isMAPOptimal().
+     * @param iterations maximum number of iterations
+     */
     public void runMAPInference(int iterations) {
-        Set<Pair<Clause,BigInteger>> activeRules = new HashSet<Pair<Clause,BigInteger>>();
+        this.lastSearchedAtoms = null;
+        this.lastSearchedTerms = null;
+        IncrementalGroundProgramSolver incrementalSolver = null;
+        if (this.incrementalMaxSat){
+            incrementalSolver = new IncrementalGroundProgramSolver();
+            incrementalSolver.setOptimizationTimeout(this.mapTimeout);
+            for (Literal literal : this.evidence){
+                incrementalSolver.addHardClause(new Clause(literal));
+            }
+        }
+        //the active ground program, every violated grounding is filtered only when it is first added to the store
+        GroundClauseStore groundClauses = new GroundClauseStore(this.atoms);
+        //violated groundings not added because of the limit set by setMaxNewGroundClauses, the incremental search
+        //for violated groundings would not find them again
+        Set<Pair<Clause,BigInteger>> deferredRules = this.incrementalViolatedRulesSearch && this.maxNewGroundClauses != Integer.MAX_VALUE ?
+                new LinkedHashSet<Pair<Clause,BigInteger>>() : null;
+        boolean anytime = this.mapTimeBudget != Integer.MAX_VALUE;
+        long deadline = anytime ? System.currentTimeMillis()+this.mapTimeBudget : Long.MAX_VALUE;
+        WorldState bestState = null;
+        WeightSum bestPenalty = null;
+        this.mapPenalty = null;
+        this.mapOptimal = false;
+        //whether the current state is an optimal solution of the ground program from which it was computed
+        boolean solvedExactly = false;
         for (int i = 0; i < iterations; i++){
-            int numActiveRulesBefore = activeRules.size();
-
-            activeRules.addAll(findViolatedRules());
-            activeRules = Sugar.<Pair<Clause,BigInteger>,Pair<Clause,BigInteger>>funcallAndRemoveNulls(activeRules, new Sugar.Fun<Pair<Clause,BigInteger>,Pair<Clause,BigInteger>>(){
-                @Override
-                public Pair<Clause, BigInteger> apply(Pair<Clause, BigInteger> clauseBigIntegerPair) {
-                    if (isGroundClauseVacuouslyTrue(clauseBigIntegerPair.r)){
-                        return null;
-                    } else {
-                        return new Pair<Clause,BigInteger>(removeSpecialAndDeterministicPredicates(clauseBigIntegerPair.r), clauseBigIntegerPair.s);
+            long matchingStart = System.nanoTime();
+            List<Pair<Clause,BigInteger>> violatedRules = this.incrementalViolatedRulesSearch ? findNewlyViolatedRules() : findViolatedRules();
+            //the penalty of the current state is known for free unless the violated rules are searched incrementally
+            this.mapPenalty = this.incrementalViolatedRulesSearch ? (anytime ? penaltySum() : null) : penaltySum(violatedRules);
+            if (anytime && (bestPenalty == null || this.mapPenalty.compareTo(bestPenalty) < 0)){
+                bestState = new WorldState(this.state);
+                bestPenalty = this.mapPenalty;
+            }
+            List<Pair<Clause,BigInteger>> candidates = new ArrayList<Pair<Clause,BigInteger>>();
+            for (Pair<Clause,BigInteger> violated : violatedRules){
+                if (!isGroundClauseVacuouslyTrue(violated.r)){
+                    Pair<Clause,BigInteger> groundClause = new Pair<Clause,BigInteger>(removeSpecialAndDeterministicPredicates(violated.r), violated.s);
+                    if (!groundClauses.contains(groundClause.r, groundClause.s)){
+                        candidates.add(groundClause);
                     }
                 }
-            });
-
-            if (numActiveRulesBefore == activeRules.size()){
+            }
+            if (deferredRules != null){
+                for (Pair<Clause,BigInteger> deferred : deferredRules){
+                    if (isGroundingViolated(deferred) && !groundClauses.contains(deferred.r, deferred.s)){
+                        candidates.add(deferred);
+                    }
+                }
+                deferredRules.clear();
+            }
+            if (candidates.size() > this.maxNewGroundClauses){
+                Collections.sort(candidates, HEAVIEST_FIRST);
+            }
+            List<Pair<Clause,BigInteger>> newlyActiveRules = new ArrayList<Pair<Clause,BigInteger>>();
+            for (Pair<Clause,BigInteger> candidate : candidates){
+                if (newlyActiveRules.size() < this.maxNewGroundClauses){
+                    if (groundClauses.add(candidate.r, candidate.s)){
+                        newlyActiveRules.add(candidate);
+                    }
+                } else if (deferredRules != null){
+                    deferredRules.add(candidate);
+                }
+            }
+            if (newlyActiveRules.isEmpty()){
+                fireIterationFinished(i, violatedRules.size(), groundClauses.size(), System.nanoTime()-matchingStart, 0, false);
+                this.mapOptimal = solvedExactly;
                 break;
             }
-
-            GroundProgramSolver gps = new GroundProgramSolver(Sugar.funcall(this.evidence, new Sugar.Fun<Literal,Clause>(){
-                @Override
-                public Clause apply(Literal literal) {
-                    return new Clause(literal);
+            long matchingNanos = System.nanoTime()-matchingStart;
+            long remaining = deadline-System.currentTimeMillis();
+            if (remaining <= 0){
+                fireIterationFinished(i, violatedRules.size(), groundClauses.size(), matchingNanos, 0, true);
+                break;
+            }
+            int solverTimeout = (int)Math.min(this.mapTimeout, remaining);
+            long solvingStart = System.nanoTime();
+            Set<Literal> newState;
+            if (incrementalSolver != null){
+                incrementalSolver.addSoftClauses(newlyActiveRules);
+                incrementalSolver.setOptimizationTimeout(solverTimeout);
+                newState = incrementalSolver.optimize();
+                this.solverTimedOut = incrementalSolver.timedOut();
+            } else {
+                //the Clause objects of the ground program exist only during the solver call, so evicting before
+                //building them bounds the memory they take (the new violated groundings are penalized, so they stay);
+                //the incremental solver keeps all clauses encoded, so evicting them from the store would not save memory
+                if (this.memoryBoundedGrounding){
+                    groundClauses.age(this.state);
+                    groundClauses.evict(this.maxGroundClauses, this.groundClauseEvictionAge);
                 }
-            }), Sugar.listFromCollections(activeRules));
-            gps.setOptimizationTimeout(this.mapTimeout);
-            Set<Literal> newState = gps.optimize();
+                newState = optimize(groundClauses.clauses(), solverTimeout);
+            }
+            fireIterationFinished(i, violatedRules.size(), groundClauses.size(), matchingNanos, System.nanoTime()-solvingStart, this.solverTimedOut);
             if (newState == null){
+                if (this.solverTimedOut){
+                    //no model within the time limit, the current state is kept
+                    break;
+                }
                 throw new MLNContradictionException();
             }
+            solvedExactly = !this.solverTimedOut && this.mapEngine != LOCAL_SEARCH_MAP;
+            this.mapPenalty = null;
             newState.addAll(deterministic);
 
             Set<Literal> literalsNoLongerTrue = Sugar.setDifference(this.state, newState);
@@ -278,10 +861,554 @@ public class MarkovLogic {
             }
             for (Literal newFalseLiteral : literalsNoLongerTrue){
                 if (!this.evidence.contains(newFalseLiteral)) {
-                    this.setState(newFalseLiteral.negation());
+                    this.setState(newFalseLiteral, false);
                 }
             }
         }
+        if (anytime){
+            if (this.mapPenalty == null){
+                this.mapPenalty = penaltySum();
+            }
+            if (bestPenalty != null && bestPenalty.compareTo(this.mapPenalty) < 0){
+                this.state = bestState;
+                this.invalidateMatching();
+                this.mapPenalty = bestPenalty;
+                this.mapOptimal = false;
+            }
+        }
+    }
+
+    /**
+     * @return the penalty of the state found by the last call of runMAPInference (it is computed when this method is
+     * called if it was not known at the end of the inference, so it refers to the current state)
+     */
+    public WeightSum mapPenalty(){
+        if (this.mapPenalty == null){
+            this.mapPenalty = penaltySum();
+        }
+        return this.mapPenalty;
+    }
+
+    /**
+     * @return true if the state found by the last call of runMAPInference is guaranteed to be a MAP state, i.e. the
+     * cutting-plane loop converged, the last ground program was solved exactly (by SAT4J) and no time limit was hit
+     */
+    public boolean isMAPOptimal(){
+        return this.mapOptimal;
+    }
+
+    /**
+     * Runs runMAPInference(iterations) independently for every given evidence set. Every query is answered by a copy
+     * of this MarkovLogic (sharing the rules, the table of ground atoms and the settings) whose evidence consists
+     * of the evidence of this MarkovLogic and the given evidence set and whose search starts from the evidence and
+     * the deterministic literals. The queries are run by the thread pool set by setBatchThreads (if any), the state
+     * of this MarkovLogic is not changed. If some queries fail with an exception (other than MLNContradictionException),
+     * the other queries are still answered and then the exception of the first failed query is rethrown.
+     * @param evidenceSets evidence sets of the queries
+     * @param iterations maximum number of iterations of every query
+     * @return for every evidence set (in the same order), the MAP state and its penalty, or null if the evidence
+     * is not consistent with the hard rules
+     */
+    public List<Pair<Set<Literal>,WeightSum>> runBatchMAPInference(final List<? extends Collection<Literal>> evidenceSets, final int iterations){
+        final List<Pair<Set<Literal>,WeightSum>> results = new ArrayList<Pair<Set<Literal>,WeightSum>>(Collections.<Pair<Set<Literal>,WeightSum>>nCopies(evidenceSets.size(), null));
+        final Map<Integer,RuntimeException> failures = new TreeMap<Integer,RuntimeException>();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < results.size(); i++){
+            final int index = i;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    MarkovLogic query = makeCopy();
+                    if (batchParallel != null){
+                        //the queries are already run in parallel, nested use of the pools could exhaust their threads
+                        query.parallel = null;
+                        query.componentParallel = null;
+                    }
+                    try {
+                        query.addEvidence(evidenceSets.get(index));
+                        query.resetState();
+                        query.runMAPInference(iterations);
+                        results.set(index, new Pair<Set<Literal>,WeightSum>(query.state(), query.mapPenalty()));
+                    } catch (MLNContradictionException e){
+                        results.set(index, null);
+                    } catch (RuntimeException e){
+                        synchronized (failures){
+                            failures.put(index, e);
+                        }
+                    }
+                }
+            });
+        }
+        if (this.batchParallel == null){
+            for (Runnable task : tasks){
+                task.run();
+            }
+        } else {
+            this.batchParallel.runTasks(tasks);
+        }
+        if (!failures.isEmpty()){
+            throw failures.values().iterator().next();
+        }
+        return results;
+    }
+
+    /**
+     * Runs MAP inference only on the part of the ground network relevant to the given query atoms. The relevant part
+     * is the closure of the query atoms under the relation "occur together in a grounding of some rule" which does
+     * not continue through evidence and deterministic atoms (their truth values are fixed, so they separate the query
+     * atoms from the rest of the network). All groundings of the rules containing the atoms from the closure are
+     * optimized at once, the truth values of the other atoms in the current state are not changed.
+     * @param queryAtoms ground atoms whose MAP truth values are needed
+     * @return the atoms of the relevant part of the network (the query atoms, which are not evidence, included)
+     */
+    public Set<Literal> runQueryMAPInference(Collection<Literal> queryAtoms){
+        Set<Term> universe = Sugar.setFromCollections(stateTermCounts().keySet());
+        for (Literal queryAtom : queryAtoms){
+            universe.addAll(queryAtom.terms());
+        }
+        OccurrenceIndex index = new OccurrenceIndex(universe);
+        Set<Integer> closure = new HashSet<Integer>();
+        Stack<Integer> open = new Stack<Integer>();
+        for (Literal queryAtom : queryAtoms){
+            int id = Math.abs(this.atoms.intern(queryAtom));
+            if (isQueryRelevant(id) && closure.add(id)){
+                open.push(id);
+            }
+        }
+        Set<Pair<Clause,BigInteger>> program = new LinkedHashSet<Pair<Clause,BigInteger>>();
+        while (!open.isEmpty()){
+            for (Pair<int[],Integer> grounding : index.groundings(open.pop())){
+                List<Literal> literals = new ArrayList<Literal>();
+                for (int literal : grounding.r){
+                    literals.add(this.atoms.literal(literal));
+                    int id = Math.abs(literal);
+                    if (isQueryRelevant(id) && closure.add(id)){
+                        open.push(id);
+                    }
+                }
+                Clause groundClause = new Clause(literals);
+                if (!isGroundClauseVacuouslyTrue(groundClause)){
+                    program.add(new Pair<Clause,BigInteger>(removeSpecialAndDeterministicPredicates(groundClause), this.rules.get(grounding.s).s));
+                }
+            }
+        }
+        Set<Literal> relevantAtoms = new HashSet<Literal>();
+        for (int id : closure){
+            relevantAtoms.add(this.atoms.literal(id));
+        }
+        if (program.isEmpty()){
+            return relevantAtoms;
+        }
+        Set<Literal> newState = optimize(program);
+        if (newState == null){
+            throw new MLNContradictionException();
+        }
+        for (Literal atom : relevantAtoms){
+            this.setState(atom, newState.contains(atom));
+        }
+        return relevantAtoms;
+    }
+
+    private boolean isQueryRelevant(int atomId){
+        return !this.evidence.contains(atomId) && !this.evidence.contains(-atomId) &&
+                !this.deterministic.contains(atomId) && !this.deterministic.contains(-atomId) &&
+                !this.deterministicPredicates.contains(new Pair<String,Integer>(this.atoms.literal(atomId).predicate(), this.atoms.literal(atomId).arity()));
+    }
+
+    /**
+     * Runs lifted MAP inference with the exchangeable constants computed by exchangeableConstants().
+     */
+    public void runLiftedMAPInference(){
+        this.resetState();
+        runLiftedMAPInference(exchangeableConstants());
+    }
+
+    /**
+     * Runs MAP inference which grounds the rules only over representatives of the given classes of exchangeable
+     * constants. If a class has n constants and at most m of them can occur in one grounding of a rule, only m
+     * representatives are kept, the weight of every grounding is multiplied by the number of groundings over the
+     * whole class which it stands for (counted relative to the number of representative groundings of the same
+     * kind) and hard clauses force the representative atoms to be symmetric. The resulting state is then expanded
+     * back to all constants of the classes. The classes are split further so that the constants in every class are
+     * exchangeable also w.r.t. the evidence and the deterministic literals, the constants in them are assumed to be
+     * exchangeable w.r.t. the rules (e.g. the constants which do not appear in any rule or the classes found by
+     * ExhaustiveConvertor). The state found is optimal only among the states which are symmetric w.r.t. the
+     * classes, so it is not reported as optimal by isMAPOptimal().
+     * @param exchangeableClasses classes of constants exchangeable w.r.t. the rules
+     */
+    public void runLiftedMAPInference(Collection<? extends Collection<Term>> exchangeableClasses){
+        this.resetState();
+        Set<Term> universe = Sugar.setFromCollections(stateTermCounts().keySet());
+        int maxTermsInRule = 0;
+        for (Pair<Clause,BigInteger> rule : this.rules){
+            maxTermsInRule = Math.max(maxTermsInRule, rule.r.terms().size());
+        }
+        Map<Term,List<Term>> classes = new HashMap<Term,List<Term>>();
+        Map<Term,List<Term>> representatives = new HashMap<Term,List<Term>>();
+        List<List<Term>> classList = splitBySymmetricEvidence(exchangeableClasses, universe);
+        for (List<Term> clazz : classList){
+            List<Term> reps = clazz.subList(0, Math.min(clazz.size(), Math.max(maxTermsInRule, 1)));
+            for (Term t : clazz){
+                classes.put(t, clazz);
+                representatives.put(t, reps);
+                if (!reps.contains(t)){
+                    universe.remove(t);
+                }
+            }
+        }
+        List<Pair<Clause,BigInteger>> program = new ArrayList<Pair<Clause,BigInteger>>();
+        for (Pair<Clause,BigInteger> rule : this.rules){
+            if (rule.s != null && rule.s.signum() == 0){
+                continue;
+            }
+            Variable[] variables = rule.r.variables().toArray(new Variable[0]);
+            List<List<Term>> domains = new ArrayList<List<Term>>(variables.length);
+            for (int i = 0; i < variables.length; i++){
+                domains.add(new ArrayList<Term>());
+                for (Term t : universe){
+                    if (variables[i].type() == null || variables[i].type().equals(t.type())){
+                        domains.get(i).add(t);
+                    }
+                }
+            }
+            groundRepresentatives(rule, variables, domains, new Term[variables.length], 0, classList, representatives, program);
+        }
+        //symmetry of the representative atoms
+        Set<Literal> programAtoms = new HashSet<Literal>();
+        for (Pair<Clause,BigInteger> groundRule : program){
+            for (Literal l : groundRule.r.literals()){
+                programAtoms.add(l.isNegated() ? l.negation() : l);
+            }
+        }
+        for (Literal atom : programAtoms){
+            Literal canonical = canonicalRepresentativeAtom(atom, classes, representatives);
+            if (!canonical.equals(atom)){
+                program.add(new Pair<Clause,BigInteger>(new Clause(Sugar.list(atom.negation(), canonical)), null));
+                program.add(new Pair<Clause,BigInteger>(new Clause(Sugar.list(atom, canonical.negation())), null));
+            }
+        }
+        this.mapOptimal = false;
+        this.mapPenalty = null;
+        if (program.isEmpty()){
+            return;
+        }
+        Set<Literal> solution = optimize(program);
+        if (solution == null){
+            throw new MLNContradictionException();
+        }
+        for (Literal atom : solution){
+            if (!atom.isNegated() && canonicalRepresentativeAtom(atom, classes, representatives).equals(atom)){
+                List<Term> classTerms = new ArrayList<Term>();
+                for (Term t : atom.terms()){
+                    if (classes.containsKey(t)){
+                        classTerms.add(t);
+                    }
+                }
+                expand(atom, classTerms, new Term[classTerms.size()], 0, classes);
+            }
+        }
+        this.invalidateMatching();
+    }
+
+    /**
+     * @return classes of the constants from the current state which do not appear in any rule and have the same type
+     * (the constants in every class are exchangeable w.r.t. the rules)
+     */
+    public List<Set<Term>> exchangeableConstants(){
+        Set<Term> ruleTerms = new HashSet<Term>();
+        for (Pair<Clause,BigInteger> rule : this.rules){
+            ruleTerms.addAll(rule.r.terms());
+        }
+        Map<String,Set<Term>> byType = new HashMap<String,Set<Term>>();
+        for (Term t : stateTermCounts().keySet()){
+            if (t instanceof Constant && !ruleTerms.contains(t)){
+                Set<Term> clazz = byType.get(t.type());
+                if (clazz == null){
+                    byType.put(t.type(), clazz = new HashSet<Term>());
+                }
+                clazz.add(t);
+            }
+        }
+        return Sugar.listFromCollections(byType.values());
+    }
+
+    private List<List<Term>> splitBySymmetricEvidence(Collection<? extends Collection<Term>> exchangeableClasses, Set<Term> universe){
+        Map<Term,List<Literal>> fixedLiterals = new HashMap<Term,List<Literal>>();
+        for (WorldState fixed : Sugar.list(this.evidence, this.deterministic)){
+            for (Literal l : fixed){
+                for (Term t : l.terms()){
+                    List<Literal> literals = fixedLiterals.get(t);
+                    if (literals == null){
+                        fixedLiterals.put(t, literals = new ArrayList<Literal>());
+                    }
+                    literals.add(l);
+                }
+            }
+        }
+        List<List<Term>> retVal = new ArrayList<List<Term>>();
+        for (Collection<Term> exchangeableClass : exchangeableClasses){
+            List<Term> sorted = Sugar.arrayListFromCollections(Sugar.intersection(Sugar.setFromCollections(exchangeableClass), universe));
+            Collections.sort(sorted, new Comparator<Term>() {
+                @Override
+                public int compare(Term o1, Term o2) {
+                    return o1.toString().compareTo(o2.toString());
+                }
+            });
+            List<List<Term>> split = new ArrayList<List<Term>>();
+            outerLoop: for (Term t : sorted){
+                for (List<Term> clazz : split){
+                    if (isSwapSymmetric(clazz.get(0), t, fixedLiterals)){
+                        clazz.add(t);
+                        continue outerLoop;
+                    }
+                }
+                split.add(Sugar.<Term>list(t));
+            }
+            for (List<Term> clazz : split){
+                if (clazz.size() > 1){
+                    retVal.add(clazz);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    private boolean isSwapSymmetric(Term a, Term b, Map<Term,List<Literal>> fixedLiterals){
+        if (a.type() == null ? b.type() != null : !a.type().equals(b.type())){
+            return false;
+        }
+        Map<Term,Term> swap = new HashMap<Term,Term>();
+        swap.put(a, b);
+        swap.put(b, a);
+        for (Term t : Sugar.list(a, b)){
+            if (fixedLiterals.containsKey(t)){
+                for (Literal l : fixedLiterals.get(t)){
+                    Literal swapped = Utils.substitute(l, swap);
+                    if (!(this.evidence.contains(l) ? this.evidence : this.deterministic).contains(swapped)){
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void groundRepresentatives(Pair<Clause,BigInteger> rule, Variable[] variables, List<List<Term>> domains, Term[] values, int index,
+                                       List<List<Term>> classes, Map<Term,List<Term>> representatives, List<Pair<Clause,BigInteger>> program){
+        if (index == variables.length){
+            Clause groundClause = Utils.substitute(rule.r, variables, values);
+            Set<Term> terms = groundClause.terms();
+            for (Term t : terms){
+                //constants of the rules which are not representatives
+                if (representatives.containsKey(t) && !representatives.get(t).contains(t)){
+                    return;
+                }
+            }
+            if (isGroundClauseVacuouslyTrue(groundClause)){
+                return;
+            }
+            BigInteger weight = rule.s;
+            if (weight != null){
+                //the number of groundings over the whole classes represented by this grounding, multiplied by
+                //the product of m! over all classes (which is the same for all groundings)
+                for (List<Term> clazz : classes){
+                    List<Term> reps = representatives.get(clazz.get(0));
+                    int j = 0;
+                    for (Term t : reps){
+                        if (terms.contains(t)){
+                            j++;
+                        }
+                    }
+                    weight = weight.multiply(fallingFactorial(clazz.size(), j)).multiply(fallingFactorial(reps.size()-j, reps.size()-j));
+                }
+            }
+            program.add(new Pair<Clause,BigInteger>(removeSpecialAndDeterministicPredicates(groundClause), weight));
+            return;
+        }
+        for (Term t : domains.get(index)){
+            values[index] = t;
+            groundRepresentatives(rule, variables, domains, values, index+1, classes, representatives, program);
+        }
+    }
+
+    private static BigInteger fallingFactorial(int n, int k){
+        BigInteger retVal = BigInteger.ONE;
+        for (int i = 0; i < k; i++){
+            retVal = retVal.multiply(BigInteger.valueOf(n-i));
+        }
+        return retVal;
+    }
+
+    /**
+     * Renames the representatives in the given atom so that the i-th distinct representative of a class which
+     * occurs in it becomes the i-th representative of that class.
+     */
+    private static Literal canonicalRepresentativeAtom(Literal atom, Map<Term,List<Term>> classes, Map<Term,List<Term>> representatives){
+        Map<Term,Term> renaming = new HashMap<Term,Term>();
+        Map<List<Term>,Integer> used = new HashMap<List<Term>,Integer>();
+        for (int i = 0; i < atom.arity(); i++){
+            Term t = atom.get(i);
+            List<Term> clazz = classes.get(t);
+            if (clazz != null && !renaming.containsKey(t)){
+                Integer j = used.get(clazz);
+                j = j == null ? 0 : j;
+                renaming.put(t, representatives.get(t).get(j));
+                used.put(clazz, j+1);
+            }
+        }
+        return renaming.isEmpty() ? atom : Utils.substitute(atom, renaming);
+    }
+
+    /**
+     * Sets true all atoms obtained from the given representative atom by injective replacements of its
+     * representatives by constants from their classes.
+     */
+    private void expand(Literal atom, List<Term> classTerms, Term[] images, int index, Map<Term,List<Term>> classes){
+        if (index == classTerms.size()){
+            Map<Term,Term> substitution = new HashMap<Term,Term>();
+            for (int i = 0; i < images.length; i++){
+                substitution.put(classTerms.get(i), images[i]);
+            }
+            Literal expanded = Utils.substitute(atom, substitution);
+            int id = this.atoms.intern(expanded);
+            if (isQueryRelevant(id)){
+                setState(id);
+            }
+            return;
+        }
+        outerLoop: for (Term t : classes.get(classTerms.get(index))){
+            for (int i = 0; i < index; i++){
+                if (images[i].equals(t)){
+                    continue outerLoop;
+                }
+            }
+            images[index] = t;
+            expand(atom, classTerms, images, index+1, classes);
+        }
+    }
+
+    /**
+     * Optimizes the given ground program (together with the evidence) using the selected MAP engine.
+     * @return the positive literals of the optimal (or the best found) state, or null if no state satisfies the hard
+     * clauses
+     */
+    private Set<Literal> optimize(Collection<Pair<Clause,BigInteger>> program){
+        return optimize(program, this.mapTimeout);
+    }
+
+    private Set<Literal> optimize(Collection<Pair<Clause,BigInteger>> program, int timeout){
+        Collection<Clause> hardProgram = evidenceClauses();
+        Set<Literal> forcedLiterals = Collections.emptySet();
+        if (this.groundProgramSimplification){
+            GroundProgramSimplifier simplifier = new GroundProgramSimplifier(hardProgram, program);
+            this.solverTimedOut = false;
+            if (!simplifier.simplify()){
+                return null;
+            }
+            hardProgram = simplifier.hardProgram();
+            program = simplifier.softProgram();
+            forcedLiterals = simplifier.forcedLiterals();
+            if (hardProgram.isEmpty() && program.isEmpty()){
+                return positiveLiterals(forcedLiterals);
+            }
+        }
+        Set<Literal> solution = optimize(hardProgram, program, timeout);
+        if (solution != null){
+            solution.addAll(positiveLiterals(forcedLiterals));
+        }
+        return solution;
+    }
+
+    private static Set<Literal> positiveLiterals(Collection<Literal> literals){
+        Set<Literal> retVal = new HashSet<Literal>();
+        for (Literal l : literals){
+            if (!l.isNegated()){
+                retVal.add(l);
+            }
+        }
+        return retVal;
+    }
+
+    private Set<Literal> optimize(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> program, int timeout){
+        if (this.mapEngine == PORTFOLIO_MAP){
+            PortfolioGroundProgramSolver portfolio = new PortfolioGroundProgramSolver(hardProgram, program);
+            portfolio.setOptimizationTimeout(timeout);
+            portfolio.exactSolver().setInitialState(this.state);
+            portfolio.exactSolver().setStratified(this.stratifiedMaxSat);
+            portfolio.localSearch().setInitialState(this.state);
+            portfolio.localSearch().setNoise(this.localSearchNoise);
+            portfolio.localSearch().setTabuLength(this.localSearchTabuLength);
+            portfolio.localSearch().setMaxFlips(this.localSearchMaxFlips);
+            portfolio.localSearch().setMaxTries(this.localSearchMaxTries);
+            Set<Literal> solution = portfolio.optimize();
+            this.solverTimedOut = portfolio.timedOut();
+            synchronized (this.portfolioWins){
+                this.portfolioWins[portfolio.winner()]++;
+            }
+            return solution;
+        } else if (this.mapEngine == LOCAL_SEARCH_MAP){
+            MaxWalkSAT maxWalkSAT = new MaxWalkSAT(hardProgram, program);
+            //the search starts from the current state (in runMAPInference, the state found in the previous iteration)
+            maxWalkSAT.setInitialState(this.state);
+            maxWalkSAT.setNoise(this.localSearchNoise);
+            maxWalkSAT.setTabuLength(this.localSearchTabuLength);
+            maxWalkSAT.setMaxFlips(this.localSearchMaxFlips);
+            maxWalkSAT.setMaxTries(this.localSearchMaxTries);
+            maxWalkSAT.setTimeout(timeout);
+            long start = System.currentTimeMillis();
+            Set<Literal> solution = maxWalkSAT.optimize();
+            this.solverTimedOut = maxWalkSAT.timedOut();
+            if (solution == null && !this.solverTimedOut){
+                //the local search used up its flips and tries, which does not prove that the hard clauses cannot be
+                //satisfied, so the exact solver decides it in the rest of the time limit
+                int remaining = (int)Math.max(1, timeout-(System.currentTimeMillis()-start));
+                solution = exactOptimize(hardProgram, program, remaining);
+            }
+            return solution;
+        } else if (this.componentDecomposition){
+            DecomposingGroundProgramSolver dgps = new DecomposingGroundProgramSolver(hardProgram, program);
+            dgps.setOptimizationTimeout(timeout);
+            dgps.setParallel(this.componentParallel);
+            //warm start from the current state (in runMAPInference, the state found in the previous iteration)
+            dgps.setInitialState(this.state);
+            dgps.setStratified(this.stratifiedMaxSat);
+            dgps.setAlgorithm(exactAlgorithm());
+            Set<Literal> solution = dgps.optimize();
+            this.solverTimedOut = dgps.timedOut();
+            return solution;
+        } else {
+            return exactOptimize(hardProgram, program, timeout);
+        }
+    }
+
+    private Set<Literal> exactOptimize(Collection<Clause> hardProgram, Collection<Pair<Clause,BigInteger>> program, int timeout){
+        GroundProgramSolver gps = new GroundProgramSolver(hardProgram, program);
+        gps.setOptimizationTimeout(timeout);
+        //warm start from the current state (in runMAPInference, the state found in the previous iteration)
+        gps.setInitialState(this.state);
+        gps.setStratified(this.stratifiedMaxSat);
+        Set<Literal> solution = gps.optimize(exactAlgorithm());
+        this.solverTimedOut = gps.timedOut();
+        return solution;
+    }
+
+    private int exactAlgorithm(){
+        return this.mapEngine == CORE_GUIDED_MAP ? GroundProgramSolver.CORE_GUIDED : GroundProgramSolver.PB_OPTIMIZATION;
+    }
+
+    private void fireIterationFinished(int iteration, int violatedGroundings, int activeClauses, long matchingNanos, long solvingNanos, boolean timedOut){
+        for (InferenceListener listener : this.inferenceListeners){
+            listener.iterationFinished(iteration, violatedGroundings, activeClauses, matchingNanos, solvingNanos, timedOut);
+        }
+    }
+
+    private Set<Clause> evidenceClauses(){
+        return Sugar.funcall(this.evidence, new Sugar.Fun<Literal, Clause>() {
+            @Override
+            public Clause apply(Literal literal) {
+                return new Clause(literal);
+            }
+        });
     }
 
     private boolean isGroundClauseVacuouslyTrue(Clause c){
@@ -289,7 +1416,7 @@ public class MarkovLogic {
             if (SpecialVarargPredicates.SPECIAL_PREDICATES.contains(l.predicate()) || SpecialBinaryPredicates.SPECIAL_PREDICATES.contains(l.predicate())){
                 return isSpecialGroundTrue(l);
             } else if (this.deterministicPredicates.contains(new Pair<String,Integer>(l.predicate(), l.arity()))){
-                if ((!l.isNegated() && this.deterministic.contains(l)) || (l.isNegated() && !this.deterministic.contains(l.negation()))){
+                if ((!l.isNegated() && this.deterministic.contains(l)) || (l.isNegated() && !this.deterministic.containsNegation(l))){
                     return true;
                 }
             }
@@ -318,16 +1445,159 @@ public class MarkovLogic {
         return false;
     }
 
+    /**
+     * Groundings of the rules indexed by the ground atoms which they contain, the groundings of the non-ground rules
+     * use the terms from the given universe. They are computed lazily for every atom for which penaltyDelta is called.
+     * Ground literals of special predicates are evaluated when the groundings are constructed. Every grounding
+     * is stored with the index of its rule.
+     */
+    private class OccurrenceIndex {
+
+        private final Set<Term> universe;
+
+        private final Map<Integer,List<Pair<int[],Integer>>> groundings = new HashMap<Integer,List<Pair<int[],Integer>>>();
+
+        private OccurrenceIndex(Set<Term> universe){
+            this.universe = universe;
+        }
+
+        private List<Pair<int[],Integer>> groundings(int atomId){
+            List<Pair<int[],Integer>> retVal = this.groundings.get(atomId);
+            if (retVal == null){
+                retVal = new ArrayList<Pair<int[],Integer>>();
+                Literal atom = atoms.literal(atomId);
+                for (int i = 0; i < rules.size(); i++){
+                    Pair<Clause,BigInteger> rule = rules.get(i);
+                    if (rule.s != null && rule.s.signum() == 0){
+                        continue;
+                    }
+                    if (LogicUtils.isGround(rule.r)){
+                        if (rule.r.containsLiteral(atom) || rule.r.containsLiteral(atoms.literal(-atomId))){
+                            addGrounding(rule.r, i, retVal);
+                        }
+                    } else {
+                        addGroundings(rule, i, atom, retVal);
+                    }
+                }
+                this.groundings.put(atomId, retVal);
+            }
+            return retVal;
+        }
+
+        private void addGroundings(Pair<Clause,BigInteger> rule, int ruleIndex, Literal atom, List<Pair<int[],Integer>> groundings){
+            Variable[] variables = rule.r.variables().toArray(new Variable[0]);
+            Set<List<Term>> substitutions = new HashSet<List<Term>>();
+            for (Literal literal : rule.r.literals()){
+                Map<Term,Term> seed;
+                if (literal.predicate().equals(atom.predicate()) && literal.arity() == atom.arity() && (seed = unify(literal, atom)) != null){
+                    Term[] values = new Term[variables.length];
+                    List<List<Term>> domains = new ArrayList<List<Term>>(variables.length);
+                    for (int i = 0; i < variables.length; i++){
+                        if (seed.containsKey(variables[i])){
+                            domains.add(Sugar.list(seed.get(variables[i])));
+                        } else {
+                            domains.add(new ArrayList<Term>());
+                            for (Term t : this.universe){
+                                if (variables[i].type() == null || variables[i].type().equals(t.type())){
+                                    domains.get(i).add(t);
+                                }
+                            }
+                        }
+                    }
+                    enumerate(rule, ruleIndex, variables, domains, values, 0, substitutions, groundings);
+                }
+            }
+        }
+
+        private void enumerate(Pair<Clause,BigInteger> rule, int ruleIndex, Variable[] variables, List<List<Term>> domains, Term[] values, int index,
+                               Set<List<Term>> substitutions, List<Pair<int[],Integer>> groundings){
+            if (index == variables.length){
+                //every substitution is counted once even if more literals of the rule unify with the atom
+                if (substitutions.add(Arrays.asList(values.clone()))){
+                    addGrounding(Utils.substitute(rule.r, variables, values), ruleIndex, groundings);
+                }
+                return;
+            }
+            for (Term t : domains.get(index)){
+                values[index] = t;
+                enumerate(rule, ruleIndex, variables, domains, values, index+1, substitutions, groundings);
+            }
+        }
+
+        private void addGrounding(Clause groundClause, int ruleIndex, List<Pair<int[],Integer>> groundings){
+            List<Integer> literals = new ArrayList<Integer>();
+            for (Literal l : groundClause.literals()){
+                if (SpecialVarargPredicates.SPECIAL_PREDICATES.contains(l.predicate()) || SpecialBinaryPredicates.SPECIAL_PREDICATES.contains(l.predicate())){
+                    if (isSpecialGroundTrue(l)){
+                        //the grounding is satisfied in every state, so it does not affect penalty deltas
+                        return;
+                    }
+                } else {
+                    literals.add(atoms.intern(l));
+                }
+            }
+            groundings.add(new Pair<int[],Integer>(VectorUtils.toIntegerArray(literals), ruleIndex));
+        }
+    }
+
+    /**
+     * Creates a copy which shares the model (the rules, the predicates, the typing, the deterministic literals and
+     * the table of ground atoms) with this MarkovLogic, only the evidence and the state are copied. The shared parts
+     * are copied by the first method (of either of the two objects) which modifies them.
+     * @return the copy
+     */
     public MarkovLogic makeCopy(){
-        MarkovLogic copy = new MarkovLogic(Sugar.listFromCollections(this.rules));
-        copy.evidence = Sugar.setFromCollections(this.evidence);
-        copy.state = Sugar.setFromCollections(this.state);
-        copy.predicates = Sugar.setFromCollections(this.predicates);
-        copy.typing = Sugar.mapFromMaps(this.typing);
+        MarkovLogic copy = new MarkovLogic();
+        this.sharedModel = true;
+        copy.sharedModel = true;
+        copy.rules = this.rules;
+        copy.ruleWeights = this.ruleWeights;
+        copy.predicates = this.predicates;
+        copy.typing = this.typing;
+        copy.deterministic = this.deterministic;
+        copy.deterministicPredicates = this.deterministicPredicates;
+        //the table of ground atoms is shared by the copies, only the bitsets are copied
+        copy.atoms = this.atoms;
+        copy.evidence = new WorldState(this.evidence);
+        copy.state = new WorldState(this.state);
+        copy.herbrandBase = this.herbrandBase;
+        copy.incrementalViolatedRulesSearch = this.incrementalViolatedRulesSearch;
+        copy.incrementalMaxSat = this.incrementalMaxSat;
+        copy.parallel = this.parallel;
+        copy.componentDecomposition = this.componentDecomposition;
+        copy.componentParallel = this.componentParallel;
+        copy.groundProgramSimplification = this.groundProgramSimplification;
+        copy.stratifiedMaxSat = this.stratifiedMaxSat;
+        copy.batchParallel = this.batchParallel;
+        copy.inferenceListeners = Sugar.listFromCollections(this.inferenceListeners);
+        copy.mapTimeout = this.mapTimeout;
+        copy.mapTimeBudget = this.mapTimeBudget;
+        copy.mapEngine = this.mapEngine;
+        copy.portfolioWins = this.portfolioWins;
+        copy.localSearchNoise = this.localSearchNoise;
+        copy.localSearchTabuLength = this.localSearchTabuLength;
+        copy.localSearchMaxFlips = this.localSearchMaxFlips;
+        copy.localSearchMaxTries = this.localSearchMaxTries;
+        copy.memoryBoundedGrounding = this.memoryBoundedGrounding;
+        copy.maxGroundClauses = this.maxGroundClauses;
+        copy.groundClauseEvictionAge = this.groundClauseEvictionAge;
+        copy.maxNewGroundClauses = this.maxNewGroundClauses;
         return copy;
     }
 
+    private void ensureOwnModel(){
+        if (this.sharedModel){
+            this.rules = Sugar.listFromCollections(this.rules);
+            this.predicates = Sugar.setFromCollections(this.predicates);
+            this.typing = Sugar.mapFromMaps(this.typing);
+            this.deterministic = new WorldState(this.deterministic);
+            this.deterministicPredicates = Sugar.setFromCollections(this.deterministicPredicates);
+            this.sharedModel = false;
+        }
+    }
+
     public void resetState(){
+        this.invalidateMatching();
         this.state.clear();
         this.state.addAll(this.evidence);
         this.state.addAll(this.deterministic);
@@ -347,65 +1617,68 @@ public class MarkovLogic {
     public Set<Literal> completeState(){
         Set<Literal> retVal = new HashSet<Literal>();
         for (Pair<String,Integer> predicate : this.predicates()){
-            retVal.addAll(Sugar.funcall(allAtoms(predicate.r, predicate.s), new Sugar.Fun<Literal, Literal>() {
-                @Override
-                public Literal apply(Literal literal) {
-                    if (state.contains(literal)){
-                        return literal;
-                    } else {
-                        return literal.negation();
-                    }
-                }
-            }));
+            for (int id : herbrandBase(predicate.r, predicate.s)){
+                retVal.add(this.atoms.literal(state.contains(id) ? id : -id));
+            }
         }
         return retVal;
     }
 
     public Set<Literal> allFalseStateAtoms(String predicate, int arity){
-        return Sugar.setDifference(allAtoms(predicate, arity), this.state);
+        Set<Literal> retVal = new HashSet<Literal>();
+        for (int id : herbrandBase(predicate, arity)){
+            if (!state.contains(id)){
+                retVal.add(this.atoms.literal(id));
+            }
+        }
+        return retVal;
     }
 
-    private Set<Literal> allAtoms(String predicate, int arity){
-        Literal literal = new Literal(predicate, arity);
-        String[] typing = null;
-        if ((typing = this.typing.get(new Pair<String,Integer>(predicate, arity))) == null) {
-            for (int i = 0; i < arity; i++) {
-                literal.set(Variable.construct("V" + (i + 1)), i);
-            }
-        } else {
-            for (int i = 0; i < arity; i++) {
-                if (typing[i] == null) {
-                    literal.set(Variable.construct("V" + (i + 1)), i);
-                } else {
-                    literal.set(Variable.construct("V" + (i + 1), typing[i]), i);
+    /**
+     * Returns the ids of all ground atoms of the given predicate whose arguments are constants from the rules
+     * (of the declared types). The ids are computed once and cached until the rules or the typing change.
+     * @param predicate predicate
+     * @param arity arity of the predicate
+     * @return positive ids of the atoms in the table of ground atoms shared by this MarkovLogic and its copies
+     * (the array must not be modified)
+     */
+    public int[] herbrandBase(String predicate, int arity){
+        Pair<String,Integer> key = new Pair<String,Integer>(predicate, arity);
+        int[] retVal = this.herbrandBase.get(key);
+        if (retVal == null){
+            Set<Term> constants = new LinkedHashSet<Term>();
+            for (Pair<Clause,BigInteger> rule : this.rules){
+                for (Term t : rule.r.terms()){
+                    if (t instanceof Constant){
+                        constants.add(t);
+                    }
                 }
             }
-        }
-        Set<Constant> constants = new HashSet<Constant>();
-        for (Pair<Clause,BigInteger> rule : this.rules()){
-            constants.addAll(Sugar.removeNulls(Sugar.funcall(rule.r.terms(), new Sugar.Fun<Term, Constant>() {
-                @Override
-                public Constant apply(Term term) {
-                    if (term instanceof Constant){
-                        return (Constant)term;
-                    } else {
-                        return null;
+            String[] typing = this.typing.get(key);
+            List<List<Term>> domains = new ArrayList<List<Term>>(arity);
+            int count = 1;
+            for (int i = 0; i < arity; i++){
+                domains.add(new ArrayList<Term>());
+                for (Term t : constants){
+                    if (typing == null || typing[i] == null || typing[i].equals(t.type())){
+                        domains.get(i).add(t);
                     }
                 }
-            })));
-        }
-        Set<Literal> constantIntroducingliterals = Sugar.funcall(constants, new Sugar.Fun<Constant,Literal>(){
-            @Override
-            public Literal apply(Constant constant) {
-                return new Literal("@",constant);
+                count *= domains.get(i).size();
             }
-        });
-        Set<Literal> retVal = new HashSet<Literal>();
-        Matching m = new Matching(Sugar.<Clause>list(new Clause(constantIntroducingliterals)));
-        Pair<Term[],List<Term[]>> substitutions = m.allSubstitutions(new Clause(literal.negation()), 0, Integer.MAX_VALUE);
-
-        for (Term[] substitution : substitutions.s){
-            retVal.add(LogicUtils.substitute(literal, substitutions.r, substitution));
+            retVal = new int[count];
+            int[] indices = new int[arity];
+            for (int j = 0; j < count; j++){
+                Literal atom = new Literal(predicate, arity);
+                for (int i = 0; i < arity; i++){
+                    atom.set(domains.get(i).get(indices[i]), i);
+                }
+                retVal[j] = this.atoms.intern(atom);
+                for (int i = arity-1; i >= 0 && ++indices[i] == domains.get(i).size(); i--){
+                    indices[i] = 0;
+                }
+            }
+            this.herbrandBase.put(key, retVal);
         }
         return retVal;
     }
@@ -425,10 +1698,13 @@ public class MarkovLogic {
     }
 
     public void addTyping(String predicate, int arity, String[] typing){
+        this.ensureOwnModel();
         this.typing.put(new Pair<String,Integer>(predicate, arity), typing);
+        this.herbrandBase = new ConcurrentHashMap<Pair<String,Integer>,int[]>();
     }
 
     void declareAsDeterministic(String predicate, int arity){
+        this.ensureOwnModel();
         this.deterministicPredicates.add(new Pair<String,Integer>(predicate, arity));
     }
 
@@ -513,7 +1789,173 @@ public class MarkovLogic {
 
     }
 
+    /**
+     * Adds a listener which is notified after every iteration of runMAPInference. The listeners are inherited by
+     * the copies created by makeCopy().
+     * @param listener
+     */
+    public void addInferenceListener(InferenceListener listener){
+        this.inferenceListeners.add(listener);
+    }
+
+    public void removeInferenceListener(InferenceListener listener){
+        this.inferenceListeners.remove(listener);
+    }
+
+    /**
+     * Sets the total wall-clock budget (in milliseconds) of one run of runMAPInference, which then returns the best
+     * state found within the budget. Integer.MAX_VALUE (the default) means no budget.
+     * @param mapTimeBudget
+     */
+    public void setMAPTimeBudget(int mapTimeBudget) {
+        this.mapTimeBudget = mapTimeBudget;
+    }
+
     public void setMAPTimeout(int mapTimeout) {
         this.mapTimeout = mapTimeout;
     }
+
+    /**
+     * Selects the solver used in the iterations of runMAPInference: EXACT_MAP (SAT4J, the default), LOCAL_SEARCH_MAP
+     * (MaxWalkSAT, which returns the best state found within the limits but does not guarantee optimality; if it finds
+     * no state satisfying the hard rules, the exact solver decides whether there is one),
+     * PORTFOLIO_MAP (both of them racing on a shared thread pool, see PortfolioGroundProgramSolver) or CORE_GUIDED_MAP
+     * (exact core-guided MaxSAT on the plain SAT4J solver, see GroundProgramSolver.optimize(int), which is faster
+     * when many low-weight soft clauses are violated).
+     * @param mapEngine
+     */
+    public void setMAPEngine(int mapEngine) {
+        this.mapEngine = mapEngine;
+    }
+
+    /**
+     * @param engine EXACT_MAP or LOCAL_SEARCH_MAP
+     * @return the number of ground programs for which the given engine won the race when the MAP engine was
+     * PORTFOLIO_MAP (counted together for this MarkovLogic and its copies)
+     */
+    public int portfolioWins(int engine){
+        synchronized (this.portfolioWins){
+            return this.portfolioWins[engine == EXACT_MAP ? PortfolioGroundProgramSolver.EXACT : PortfolioGroundProgramSolver.LOCAL_SEARCH];
+        }
+    }
+
+    /**
+     * Sets the parameters of MaxWalkSAT used when the MAP engine is LOCAL_SEARCH_MAP or PORTFOLIO_MAP.
+     * @param noise probability of flipping a random atom of the selected clause instead of the best one
+     * @param tabuLength number of steps during which a flipped atom cannot be flipped back
+     * @param maxFlips maximum number of flips in one try
+     * @param maxTries maximum number of restarts
+     */
+    public void setLocalSearchParameters(double noise, int tabuLength, int maxFlips, int maxTries) {
+        this.localSearchNoise = noise;
+        this.localSearchTabuLength = tabuLength;
+        this.localSearchMaxFlips = maxFlips;
+        this.localSearchMaxTries = maxTries;
+    }
+
+    /**
+     * Sets the number of threads used for finding violated rules (in findViolatedRules and hence also in penalty()
+     * and runMAPInference). The thread pool is shared by the copies created by makeCopy(). The pool is kept if the
+     * number of threads does not change, otherwise the old pool is stopped (copies still sharing it then search
+     * the rules in the calling thread).
+     * @param threads number of threads, 1 means that the rules are searched sequentially
+     */
+    public void setViolatedRulesSearchThreads(int threads) {
+        this.parallel = resizePool(this.parallel, threads);
+    }
+
+    private static Parallel resizePool(Parallel pool, int threads){
+        int newThreads = threads > 1 ? threads : 0;
+        if (pool != null && pool.threadCount() == newThreads){
+            return pool;
+        }
+        if (pool != null){
+            pool.stop();
+        }
+        return newThreads > 0 ? new Parallel(newThreads) : null;
+    }
+
+    /**
+     * Sets the number of threads used for answering the queries in runBatchMAPInference. The thread pool is shared
+     * by the copies created by makeCopy(), it is kept if the number of threads does not change, otherwise the old
+     * pool is stopped.
+     * @param threads number of threads, 1 means that the queries are answered sequentially
+     */
+    public void setBatchThreads(int threads) {
+        this.batchParallel = resizePool(this.batchParallel, threads);
+    }
+
+    /**
+     * If set to true (default), unit propagation from the evidence and the hard unit clauses is run on every ground
+     * program and the program is simplified (by GroundProgramSimplifier) before it is passed to the MAP engine.
+     * @param groundProgramSimplification
+     */
+    public void setGroundProgramSimplification(boolean groundProgramSimplification) {
+        this.groundProgramSimplification = groundProgramSimplification;
+    }
+
+    /**
+     * If set to true, the exact MAP engine optimizes the ground programs by stratified MaxSAT (the soft clauses are
+     * optimized in strata of decreasing weights, see GroundProgramSolver.setStratified), which helps for rules with
+     * a large range of weights, e.g. weights produced by LexicographicTransformation. It has no effect on the local
+     * search, on CORE_GUIDED_MAP and on the incremental MaxSAT solver.
+     * @param stratifiedMaxSat
+     */
+    public void setStratifiedMaxSat(boolean stratifiedMaxSat) {
+        this.stratifiedMaxSat = stratifiedMaxSat;
+    }
+
+    public void setIncrementalViolatedRulesSearch(boolean incrementalViolatedRulesSearch) {
+        this.incrementalViolatedRulesSearch = incrementalViolatedRulesSearch;
+    }
+
+    /**
+     * If set to true, one IncrementalGroundProgramSolver is used throughout the whole run of runMAPInference
+     * and only the newly activated ground rules are added to it in every iteration.
+     * @param incrementalMaxSat
+     */
+    public void setIncrementalMaxSat(boolean incrementalMaxSat) {
+        this.incrementalMaxSat = incrementalMaxSat;
+    }
+
+    /**
+     * If set to true, the ground program in every iteration of runMAPInference is split into components which do not
+     * share any atoms and the components are optimized independently (see DecomposingGroundProgramSolver). It is
+     * used only with the exact MAP engine and without the incremental MaxSAT solver.
+     * The thread pool is kept if the number of threads does not change, otherwise the old pool is stopped.
+     * @param componentDecomposition
+     * @param threads number of threads used for solving the components, 1 means that they are solved sequentially
+     */
+    public void setComponentDecomposition(boolean componentDecomposition, int threads) {
+        this.componentDecomposition = componentDecomposition;
+        this.componentParallel = resizePool(this.componentParallel, componentDecomposition ? threads : 1);
+    }
+
+    /**
+     * Limits the number of violated groundings added to the ground program in one iteration of runMAPInference,
+     * only the maxNewGroundClauses heaviest ones (hard groundings first) are added. Every iteration still adds at least
+     * one new grounding and the inference stops only when no violated grounding is missing from the ground program,
+     * so it converges to the same fixpoint as without the limit (unless groundings are evicted by memory-bounded
+     * grounding), possibly in more iterations but with smaller ground programs in the early iterations.
+     * Integer.MAX_VALUE (the default) means no limit.
+     * @param maxNewGroundClauses the maximum number of groundings added in one iteration
+     */
+    public void setMaxNewGroundClauses(int maxNewGroundClauses) {
+        this.maxNewGroundClauses = Math.max(1, maxNewGroundClauses);
+    }
+
+    /**
+     * Switches runMAPInference to memory-bounded grounding: when there are more than maxGroundClauses violated groundings
+     * in the GroundClauseStore of the active ground program, the soft ones which have not been
+     * penalized for at least evictionAge iterations are evicted (they are added again if they become violated).
+     * Eviction happens before every solver call, so the cap bounds both the stored int[] clauses and the Clause
+     * objects built for the solver. The cap is not applied when the incremental MaxSAT solver is used.
+     * @param maxGroundClauses the cap on the number of stored ground clauses
+     * @param evictionAge minimum number of iterations for which an evicted clause must not have been penalized
+     */
+    public void setMemoryBoundedGrounding(int maxGroundClauses, int evictionAge) {
+        this.memoryBoundedGrounding = true;
+        this.maxGroundClauses = maxGroundClauses;
+        this.groundClauseEvictionAge = evictionAge;
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 Ondrej Kuzelka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package supertweety.mln;
+
+import ida.ilp.logic.Literal;
+import supertweety.logic.GroundAtomTable;
+
+import java.util.*;
+
+/**
+ * Set of ground literals represented by two bitsets over the ids of a GroundAtomTable - one for the literals
+ * which are not negated and one for the negated literals. Membership tests and updates of already interned
+ * literals do not allocate any objects.
+ */
+public class WorldState extends AbstractSet<Literal> {
+
+    private final GroundAtomTable table;
+
+    private long[] positive;
+
+    private long[] negative;
+
+    private int size = 0;
+
+    public WorldState(GroundAtomTable table){
+        this.table = table;
+        this.positive = new long[1];
+        this.negative = new long[1];
+    }
+
+    public WorldState(WorldState state){
+        this.table = state.table;
+        this.positive = state.positive.clone();
+        this.negative = state.negative.clone();
+        this.size = state.size;
+    }
+
+    public GroundAtomTable table(){
+        return this.table;
+    }
+
+    /**
+     * @param id signed id of a literal from the table
+     * @return true if the literal with the given signed id is in the set
+     */
+    public boolean contains(int id){
+        return id > 0 ? get(positive, id) : (id < 0 && get(negative, -id));
+    }
+
+    /**
+     * @param literal ground literal
+     * @return true if the negation of the given literal is in the set
+     */
+    public boolean containsNegation(Literal literal){
+        return contains(-table.id(literal));
+    }
+
+    /**
+     * @param id signed id of a literal from the table
+     * @return true if the set changed
+     */
+    public boolean add(int id){
+        boolean added;
+        if (id > 0){
+            added = !get(positive, id);
+            positive = set(positive, id);
+        } else {
+            added = !get(negative, -id);
+            negative = set(negative, -id);
+        }
+        if (added){
+            size++;
+        }
+        return added;
+    }
+
+    /**
+     * @param id signed id of a literal from the table
+     * @return true if the set changed
+     */
+    public boolean remove(int id){
+        if (!contains(id)){
+            return false;
+        }
+        if (id > 0){
+            clear(positive, id);
+        } else {
+            clear(negative, -id);
+        }
+        size--;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Literal && contains(table.id((Literal)o));
+    }
+
+    @Override
+    public boolean add(Literal literal) {
+        return add(table.intern(literal));
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Literal && remove(table.id((Literal)o));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Literal> c) {
+        if (c instanceof WorldState && ((WorldState)c).table == this.table){
+            WorldState other = (WorldState)c;
+            int oldSize = this.size;
+            this.positive = or(this.positive, other.positive);
+            this.negative = or(this.negative, other.negative);
+            this.size = count(this.positive) + count(this.negative);
+            return oldSize != this.size;
+        }
+        return super.addAll(c);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(positive, 0L);
+        Arrays.fill(negative, 0L);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Literal> iterator() {
+        return new Iterator<Literal>() {
+
+            private int next = advance(1);
+
+            private int last = 0;
+
+            private int advance(int from){
+                int id = from;
+                //positive ids first, then the negative ones
+                if (id > 0){
+                    id = nextSetBit(positive, id);
+                    if (id > 0){
+                        return id;
+                    }
+                    id = -1;
+                }
+                id = nextSetBit(negative, -id);
+                return id > 0 ? -id : 0;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != 0;
+            }
+
+            @Override
+            public Literal next() {
+                if (next == 0){
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = advance(next > 0 ? next+1 : next-1);
+                return table.literal(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last == 0){
+                    throw new IllegalStateException();
+                }
+                WorldState.this.remove(last);
+                last = 0;
+            }
+        };
+    }
+
+    private static boolean get(long[] bits, int index){
+        int word = index >>> 6;
+        return word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+
+    private static long[] set(long[] bits, int index){
+        int word = index >>> 6;
+        if (word >= bits.length){
+            bits = Arrays.copyOf(bits, Math.max(2*bits.length, word+1));
+        }
+        bits[word] |= 1L << index;
+        return bits;
+    }
+
+    private static void clear(long[] bits, int index){
+        int word = index >>> 6;
+        if (word < bits.length){
+            bits[word] &= ~(1L << index);
+        }
+    }
+
+    private static long[] or(long[] a, long[] b){
+        long[] retVal = a.length >= b.length ? a : Arrays.copyOf(a, b.length);
+        for (int i = 0; i < b.length; i++){
+            retVal[i] |= b[i];
+        }
+        return retVal;
+    }
+
+    private static int count(long[] bits){
+        int count = 0;
+        for (long word : bits){
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return the smallest index >= from whose bit is set, or -1 if there is no such index
+     */
+    private static int nextSetBit(long[] bits, int from){
+        int word = from >>> 6;
+        if (word >= bits.length){
+            return -1;
+        }
+        long w = bits[word] & (-1L << from);
+        while (true){
+            if (w != 0){
+                return (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+            if (++word == bits.length){
+                return -1;
+            }
+            w = bits[word];
+        }
+    }
+}
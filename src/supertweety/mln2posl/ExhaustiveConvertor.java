@@ -23,6 +23,7 @@ import ida.utils.tuples.Triple;
 import supertweety.defaults.DefaultRule;
 import supertweety.logic.ProgramSolver;
 import supertweety.misc.Utils;
+import supertweety.misc.WeightSum;
 import supertweety.mln.MLNContradictionException;
 import supertweety.mln.MarkovLogic;
 import supertweety.possibilistic.PossibilisticLogic;
@@ -64,6 +65,10 @@ public class ExhaustiveConvertor {
 
     private boolean shortDrowningEnforcingClauses = false;
 
+    private int mapCacheSize = 10000;
+
+    private MAPCache mapCache;
+
     public ExhaustiveConvertor(MarkovLogic mln, Set<Term> constants){
         this.mln = mln;
         this.constants.addAll(constants);
@@ -77,6 +82,7 @@ public class ExhaustiveConvertor {
     private void levelBased(){
         Map<Term,Pair<Term,Integer>> exchangeable = partitionExchangeable(this.mln);
         System.out.println("EXCHANGEABLE: "+exchangeable);
+        this.mapCache = new MAPCache(exchangeable, this.mapCacheSize);
 
         PossibilisticLogic theory = new PossibilisticLogic();
         Set<Clause> hardRules = new HashSet<Clause>();
@@ -113,12 +119,19 @@ public class ExhaustiveConvertor {
                 mlnCopy1.resetEvidence();
                 mlnCopy1.resetState();
                 mlnCopy1.addEvidence(evidenceSet);
-                try {
-                    mlnCopy1.runMAPInference(this.mapInferenceIterations);
-                } catch (MLNContradictionException e){
-                    System.out.println("Contradiction exception. Why?");
+                //the MAP state is needed here, so only a result for the identical evidence set can be reused
+                MAPResult mapResult = this.mapCache.getIdentical(evidenceSet);
+                if (mapResult != null){
+                    mlnCopy1.resetState(mapResult.state);
+                } else {
+                    try {
+                        mlnCopy1.runMAPInference(this.mapInferenceIterations);
+                    } catch (MLNContradictionException e){
+                        System.out.println("Contradiction exception. Why?");
+                    }
+                    mapResult = mapResult(mlnCopy1, evidenceSet);
                 }
-                penalty = mlnCopy1.doublePenalty();
+                penalty = mapResult.penalty.doubleValue();
                 consequenceSet = Sugar.<Literal,Literal>funcallAndRemoveNulls(Sugar.union(
                         findPositiveConsequence(evidenceSet, mlnCopy1.state(), penalty),
                         findNegativeConsequence(evidenceSet, mlnCopy1.state(), penalty)
@@ -186,9 +199,13 @@ public class ExhaustiveConvertor {
                             if (!closed.containsIsomorphic(liftedExtendedEvidenceSet)) {
                                 mlnCopy2.resetEvidence();
                                 mlnCopy2.addEvidence(extendedEvidenceSet);
-                                if (mlnCopy2.isConsistent()) { // it would make no sense to consider evidence sets inconsistent with the hard rules iterable the MLN
-                                    mlnCopy2.runMAPInference(this.mapInferenceIterations);
-                                    double penaltyOfExtendedEvidenceSet = mlnCopy2.doublePenalty();
+                                WeightSum cachedPenalty = this.mapCache.getPenalty(extendedEvidenceSet);
+                                if (cachedPenalty != null || mlnCopy2.isConsistent()) { // it would make no sense to consider evidence sets inconsistent with the hard rules iterable the MLN
+                                    if (cachedPenalty == null) {
+                                        mlnCopy2.runMAPInference(this.mapInferenceIterations);
+                                        cachedPenalty = mapResult(mlnCopy2, extendedEvidenceSet).penalty;
+                                    }
+                                    double penaltyOfExtendedEvidenceSet = cachedPenalty.doubleValue();
                                     heap.add(penaltyOfExtendedEvidenceSet + extendedEvidenceSet.size() / 1.0e3, extendedEvidenceSet);
                                     closed.store(liftClause(new Clause(extendedEvidenceSet), exchangeable));
                                 }
@@ -359,8 +376,7 @@ public class ExhaustiveConvertor {
         mlnCopy2.resetState(state);
         mlnCopy2.addEvidence(evidence);
 
-        mlnCopy2.runMAPInference(this.mapInferenceIterations);
-        double penaltyBefore = mlnCopy2.doublePenalty();
+        WeightSum penaltyBefore = mapPenalty(mlnCopy2, evidence);
 
         for (Literal l : candidates) {
             if (isDeterministic(l)) {
@@ -374,10 +390,10 @@ public class ExhaustiveConvertor {
                     if (!evidence.contains(l) && !evidence.contains(l.negation())) {
 
                         mlnCopy2.addEvidence(l.negation());
-                        if (mlnCopy2.isConsistent()) {
-                            mlnCopy2.runMAPInference(this.mapInferenceIterations);
-                            double penaltyAfter = mlnCopy2.doublePenalty();
-                            if (penaltyAfter > penaltyBefore) {
+                        Set<Literal> extendedEvidence = Sugar.<Literal>union(evidence, l.negation());
+                        if (this.mapCache.containsIsomorphic(extendedEvidence) || mlnCopy2.isConsistent()) {
+                            WeightSum penaltyAfter = mapPenalty(mlnCopy2, extendedEvidence);
+                            if (penaltyAfter.compareTo(penaltyBefore) > 0) {
                                 retVal.add(l);
                                 closedEntailed.store(liftedClause);
                             } else {
@@ -406,13 +422,12 @@ public class ExhaustiveConvertor {
                 if (!evidence.contains(l) && !evidence.contains(l.negation())) {
                     mlnCopy.resetState(state);
                     mlnCopy.addEvidence(evidence);
-                    mlnCopy.runMAPInference(this.mapInferenceIterations);
-                    double penaltyBefore = mlnCopy.doublePenalty();
+                    WeightSum penaltyBefore = mapPenalty(mlnCopy, evidence);
                     mlnCopy.addEvidence(l.negation());
-                    if (mlnCopy.isConsistent()) {
-                        mlnCopy.runMAPInference(this.mapInferenceIterations);
-                        double penaltyAfter = mlnCopy.doublePenalty();
-                        if (penaltyAfter > penaltyBefore) {
+                    Set<Literal> extendedEvidence = Sugar.<Literal>union(evidence, l.negation());
+                    if (this.mapCache.containsIsomorphic(extendedEvidence) || mlnCopy.isConsistent()) {
+                        WeightSum penaltyAfter = mapPenalty(mlnCopy, extendedEvidence);
+                        if (penaltyAfter.compareTo(penaltyBefore) > 0) {
                             retVal.add(l);
                         }
                     } else {
@@ -425,6 +440,32 @@ public class ExhaustiveConvertor {
         return retVal;
     }
 
+    /**
+     * Returns the penalty of the MAP state of the given MLN, whose evidence must be the given evidence set. MAP inference
+     * is run only if the cache does not contain a result for an isomorphic evidence set.
+     */
+    private WeightSum mapPenalty(MarkovLogic mln, Set<Literal> evidence){
+        WeightSum penalty = this.mapCache.getPenalty(evidence);
+        if (penalty == null){
+            mln.runMAPInference(this.mapInferenceIterations);
+            penalty = mapResult(mln, evidence).penalty;
+        }
+        return penalty;
+    }
+
+    /**
+     * Returns the result of the last call of runMAPInference of the given MLN, whose evidence must be the given
+     * evidence set. The result is cached only if it is a MAP state (isMAPOptimal() is false also when the inference
+     * was stopped by a limit or by MLNContradictionException), otherwise the penalties of isomorphic evidence sets
+     * would be taken from a state which may not be optimal.
+     */
+    private MAPResult mapResult(MarkovLogic mln, Set<Literal> evidence){
+        if (mln.isMAPOptimal()){
+            return this.mapCache.put(evidence, mln.penaltySum(), mln.state());
+        }
+        return new MAPResult(Sugar.setFromCollections(evidence), null, null, mln.penaltySum(), Sugar.setFromCollections(mln.state()));
+    }
+
     private boolean isDeterministic(Literal l){
         return this.deterministicPredicates.contains(new Pair<String,Integer>(l.predicate(), l.arity()));
     }
@@ -434,19 +475,17 @@ public class ExhaustiveConvertor {
         MarkovLogic mln = this.mln.makeCopy();
         mln.resetState(state);
         mln.addEvidence(evidence);
+        //if the hard rules are violated, no flip can increase the penalty
+        boolean hardRulesSatisfied = !mln.penaltySum().isInfinite();
         //for (Literal l : Sugar.setFromCollections(mln.state())){
         for (Literal l : state){
             if (isDeterministic(l)){
                 retVal.add(l);
             } else {
                 if (!evidence.contains(l) && !evidence.contains(l.negation())) {
-                    double penaltyBefore = mln.doublePenalty();
-                    mln.setState(l.negation());
-                    double penaltyAfter = mln.doublePenalty();
-                    if (penaltyAfter > penaltyBefore) {
+                    if (hardRulesSatisfied && increasesPenalty(mln.penaltyDeltaSum(l, false))) {
                         retVal.add(l);
                     }
-                    mln.setState(l);
                 }
             }
         }
@@ -458,19 +497,16 @@ public class ExhaustiveConvertor {
         MarkovLogic mln = this.mln.makeCopy();
         mln.resetState(state);
         mln.addEvidence(evidence);
+        boolean hardRulesSatisfied = !mln.penaltySum().isInfinite();
         for (Pair<String,Integer> predicate : mln.predicates()) {
             for (Literal l : mln.allFalseStateAtoms(predicate.r, predicate.s)) {
                 if (isDeterministic(l)){
                     retVal.add(l);
                 } else {
                     if (!evidence.contains(l) && !evidence.contains(l.negation())) {
-                        double penaltyBefore = mln.doublePenalty();
-                        mln.setState(l);
-                        double penaltyAfter = mln.doublePenalty();
-                        if (penaltyAfter > penaltyBefore) {
+                        if (hardRulesSatisfied && increasesPenalty(mln.penaltyDeltaSum(l, true))) {
                             retVal.add(l.negation());
                         }
-                        mln.setState(l.negation());
                     }
                 }
             }
@@ -478,6 +514,11 @@ public class ExhaustiveConvertor {
         return retVal;
     }
 
+    private static boolean increasesPenalty(WeightSum penaltyDelta){
+        //null means that a hard rule would be violated
+        return penaltyDelta == null || penaltyDelta.signum() > 0;
+    }
+
     private static Map<Term,Pair<Term,Integer>> partitionExchangeable(MarkovLogic mln){
         MultiMap<Term,Term> partitioning = new MultiMap<Term, Term>();
         List<Pair<Clause,BigInteger>> rules = mln.rules();
@@ -651,17 +692,17 @@ public class ExhaustiveConvertor {
 
     private class Closed {
 
-        private MultiMap<Counters,Clause> closed = new MultiMap<Counters,Clause>();
+        private MultiMap<Counters<Object>,Clause> closed = new MultiMap<Counters<Object>,Clause>();
 
         private void store(Clause clause){
             Clause internalRepresentation = toInternal(clause);
-            Counters fingerprint = makeFingerprint(internalRepresentation);
+            Counters<Object> fingerprint = makeFingerprint(internalRepresentation);
             closed.put(fingerprint, internalRepresentation);
         }
 
         private boolean containsIsomorphic(Clause clause){
             Clause internalRepresentation = toInternal(clause);
-            Counters fingerprint = makeFingerprint(internalRepresentation);
+            Counters<Object> fingerprint = makeFingerprint(internalRepresentation);
             if (LogicUtils.isGround(clause)){
                 return closed.get(fingerprint).contains(clause);
             } else {
@@ -673,34 +714,132 @@ public class ExhaustiveConvertor {
             }
             return false;
         }
+    }
 
-        private Counters makeFingerprint(Clause clause){
-            Counters fingerprint = new Counters();
-            Counters<Triple<String,Variable,Integer>> degrees = new Counters();
-            for (Literal l : clause.literals()){
-                fingerprint.increment(l.predicate());
-                for (int i = 0; i < l.arity(); i++){
-                    if (l.get(i) instanceof Constant){
-                        fingerprint.increment(new Triple<String, Term, Integer>(l.predicate(), l.get(i), i));
-                    } else if (l.get(i) instanceof Variable) {
-                        degrees.increment(new Triple<String,Variable,Integer>(l.predicate(), (Variable)l.get(i), i));
-                    }
+    private static class MAPResult {
+
+        private final Set<Literal> evidence;
+
+        private final Clause liftedEvidence;
+
+        private final Counters<Object> fingerprint;
+
+        private final WeightSum penalty;
+
+        private final Set<Literal> state;
+
+        private MAPResult(Set<Literal> evidence, Clause liftedEvidence, Counters<Object> fingerprint, WeightSum penalty, Set<Literal> state){
+            this.evidence = evidence;
+            this.liftedEvidence = liftedEvidence;
+            this.fingerprint = fingerprint;
+            this.penalty = penalty;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Cache of the results of MAP inference keyed by the evidence sets lifted w.r.t. the exchangeable constants.
+     * Evidence sets which are isomorphic under the exchangeable-constant partition have the same penalty, but the MAP
+     * state is reused only for identical evidence sets. When the cache is full, the oldest result is removed.
+     */
+    private class MAPCache {
+
+        private final Map<Term,Pair<Term,Integer>> exchangeable;
+
+        private final int maxSize;
+
+        private final LinkedHashMap<Set<Literal>,MAPResult> identical = new LinkedHashMap<Set<Literal>,MAPResult>();
+
+        private final MultiMap<Counters<Object>,MAPResult> lifted = new MultiMap<Counters<Object>,MAPResult>();
+
+        private int hits, misses;
+
+        private MAPCache(Map<Term,Pair<Term,Integer>> exchangeable, int maxSize){
+            this.exchangeable = exchangeable;
+            this.maxSize = maxSize;
+        }
+
+        private MAPResult getIdentical(Set<Literal> evidence){
+            MAPResult result = identical.get(evidence);
+            if (result != null){
+                hits++;
+            } else {
+                misses++;
+            }
+            return result;
+        }
+
+        private WeightSum getPenalty(Set<Literal> evidence){
+            MAPResult result = find(evidence);
+            if (result != null){
+                hits++;
+                return result.penalty;
+            }
+            misses++;
+            return null;
+        }
+
+        private boolean containsIsomorphic(Set<Literal> evidence){
+            return find(evidence) != null;
+        }
+
+        private MAPResult find(Set<Literal> evidence){
+            MAPResult result = identical.get(evidence);
+            if (result != null){
+                return result;
+            }
+            Clause liftedEvidence = toInternal(liftClause(new Clause(evidence), exchangeable));
+            for (MAPResult candidate : lifted.get(makeFingerprint(liftedEvidence))){
+                if (isomorphic(liftedEvidence, candidate.liftedEvidence)){
+                    return candidate;
                 }
             }
-            List<Triple<String,Integer,Integer>> variableContexts = new ArrayList<Triple<String,Integer,Integer>>();
-            for (Map.Entry<Triple<String,Variable,Integer>,Integer> entry : degrees.toMap().entrySet()){
-                fingerprint.increment(new Triple<String,Integer,Integer>(entry.getKey().r, entry.getKey().t, entry.getValue()));
+            return null;
+        }
+
+        private MAPResult put(Set<Literal> evidence, WeightSum penalty, Set<Literal> state){
+            Clause liftedEvidence = toInternal(liftClause(new Clause(evidence), exchangeable));
+            MAPResult result = new MAPResult(Sugar.setFromCollections(evidence), liftedEvidence, makeFingerprint(liftedEvidence), penalty, Sugar.setFromCollections(state));
+            MAPResult previous = identical.put(result.evidence, result);
+            if (previous != null){
+                lifted.remove(previous.fingerprint, previous);
+            }
+            lifted.put(result.fingerprint, result);
+            if (identical.size() > maxSize){
+                Iterator<MAPResult> iterator = identical.values().iterator();
+                MAPResult oldest = iterator.next();
+                iterator.remove();
+                lifted.remove(oldest.fingerprint, oldest);
             }
-            return fingerprint;
+            return result;
         }
+    }
 
-        private boolean isomorphic(Clause a, Clause b){
-            Matching m = new Matching();
-            m.setSubsumptionMode(Matching.OI_SUBSUMPTION);
-            return a.countLiterals() == b.countLiterals() && a.predicates().equals(b.predicates())
-                    && m.subsumption(a,b);
+    private Counters<Object> makeFingerprint(Clause clause){
+        Counters<Object> fingerprint = new Counters<Object>();
+        Counters<Triple<String,Variable,Integer>> degrees = new Counters<Triple<String,Variable,Integer>>();
+        for (Literal l : clause.literals()){
+            fingerprint.increment(l.predicate());
+            for (int i = 0; i < l.arity(); i++){
+                if (l.get(i) instanceof Constant){
+                    fingerprint.increment(new Triple<String, Term, Integer>(l.predicate(), l.get(i), i));
+                } else if (l.get(i) instanceof Variable) {
+                    degrees.increment(new Triple<String,Variable,Integer>(l.predicate(), (Variable)l.get(i), i));
+                }
+            }
+        }
+        List<Triple<String,Integer,Integer>> variableContexts = new ArrayList<Triple<String,Integer,Integer>>();
+        for (Map.Entry<Triple<String,Variable,Integer>,Integer> entry : degrees.toMap().entrySet()){
+            fingerprint.increment(new Triple<String,Integer,Integer>(entry.getKey().r, entry.getKey().t, entry.getValue()));
         }
+        return fingerprint;
+    }
 
+    private boolean isomorphic(Clause a, Clause b){
+        Matching m = new Matching();
+        m.setSubsumptionMode(Matching.OI_SUBSUMPTION);
+        return a.countLiterals() == b.countLiterals() && a.predicates().equals(b.predicates())
+                && m.subsumption(a,b);
     }
 
     private boolean subIsomorphism(Clause a, Clause b){
@@ -743,6 +882,28 @@ public class ExhaustiveConvertor {
         this.deterministicPredicates.add(new Pair<String,Integer>(predicate, arity));
     }
 
+    /**
+     * Sets the maximum number of MAP inference results cached during convert(..).
+     * @param mapCacheSize
+     */
+    public void setMAPCacheSize(int mapCacheSize){
+        this.mapCacheSize = mapCacheSize;
+    }
+
+    /**
+     * @return the number of MAP inference calls answered from the cache during the last run of convert(..)
+     */
+    public int mapCacheHits(){
+        return this.mapCache == null ? 0 : this.mapCache.hits;
+    }
+
+    /**
+     * @return the number of MAP inference calls not answered from the cache during the last run of convert(..)
+     */
+    public int mapCacheMisses(){
+        return this.mapCache == null ? 0 : this.mapCache.misses;
+    }
+
     public void setDoNotRemoveEntailedByLonger(boolean doNotRemoveEntailedByLonger){
         this.doNotRemoveEntailedByLonger = doNotRemoveEntailedByLonger;
     }